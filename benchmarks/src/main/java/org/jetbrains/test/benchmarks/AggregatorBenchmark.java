@@ -0,0 +1,62 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.OverheadCalibration;
+import org.jetbrains.test.calltree.aggregator.MethodCallAmount;
+import org.jetbrains.test.calltree.aggregator.MethodCallCorrectedTime;
+import org.jetbrains.test.calltree.aggregator.MethodCallTime;
+import org.jetbrains.test.calltree.aggregator.Profile;
+import org.jetbrains.test.calltree.aggregator.ProfileAggregator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of aggregators over trees of the given amount of nodes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AggregatorBenchmark {
+    @Param({"1000", "100000"})
+    private int size;
+
+    private CallTree tree;
+
+    @Setup
+    public void prepare() {
+        tree = Trees.generate(size);
+    }
+
+    @Benchmark
+    public Map<String, Integer> callAmount() {
+        return MethodCallAmount.execute(tree);
+    }
+
+    @Benchmark
+    public Map<String, Long> callTime() {
+        return MethodCallTime.execute(tree);
+    }
+
+    @Benchmark
+    public Map<String, MethodCallCorrectedTime.Times> correctedTime() {
+        return MethodCallCorrectedTime.execute(tree, OverheadCalibration.NONE);
+    }
+
+    @Benchmark
+    public Profile profile() {
+        return ProfileAggregator.execute(tree);
+    }
+
+    @Benchmark
+    public Profile correctedProfile() {
+        return ProfileAggregator.execute(Collections.singletonList(tree), ForkJoinPool.commonPool(),
+                new OverheadCalibration(10, 2));
+    }
+}
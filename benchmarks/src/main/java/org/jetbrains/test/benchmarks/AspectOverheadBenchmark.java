@@ -0,0 +1,56 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the woven advice around empty methods with the given depth of nested profiled calls, compared with
+ * the same methods without profiling. The trees are cleared before every iteration, so the heap doesn't grow
+ * through the whole run. The {@code EVENTS} storage records only in {@code CALLS} mode, the nodes are built by its
+ * consumer thread concurrently with the measured threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class AspectOverheadBenchmark {
+    @Param({"1", "4", "16"})
+    private int depth;
+
+    @Param({"CALLS", "CALLING_CONTEXTS"})
+    private CallTree.RecordingMode recordingMode;
+
+    @Param({"NODES", "EVENTS"})
+    private CallTree.Storage storage;
+
+    private final ProfiledTarget target = new ProfiledTarget();
+
+    @Setup(Level.Iteration)
+    public void clearTrees() {
+        CallTree.setDefaultRecordingMode(recordingMode);
+        CallTree.setDefaultStorage(storage);
+        CallTree.clear();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int profiledSingleThread() {
+        return target.call(depth);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int profiledFourThreads() {
+        return target.call(depth);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int plainSingleThread() {
+        return target.plainCall(depth);
+    }
+}
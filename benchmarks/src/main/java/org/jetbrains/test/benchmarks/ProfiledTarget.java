@@ -0,0 +1,15 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.profiller.Profiling;
+
+// Empty methods woven by TestAspect, every call of call(depth) records depth nested calls
+class ProfiledTarget {
+    @Profiling(arguments = Profiling.ArgumentCapture.NONE)
+    int call(int depth) {
+        return depth > 1 ? call(depth - 1) : depth;
+    }
+
+    int plainCall(int depth) {
+        return depth > 1 ? plainCall(depth - 1) : depth;
+    }
+}
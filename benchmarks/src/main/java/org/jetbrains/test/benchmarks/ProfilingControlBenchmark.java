@@ -0,0 +1,52 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.profiller.ProfilingControl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the woven advice switched by {@link ProfilingControl}: {@code ON} records every call, {@code OFF}
+ * turns profiling off globally and {@code METHOD_OFF} disables only the called method by the rule. Compare with
+ * {@link AspectOverheadBenchmark#plainSingleThread()}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ProfilingControlBenchmark {
+    @Param({"1", "16"})
+    private int depth;
+
+    @Param({"ON", "OFF", "METHOD_OFF"})
+    private String control;
+
+    private final ProfiledTarget target = new ProfiledTarget();
+
+    @Setup(Level.Trial)
+    public void configure() {
+        ProfilingControl.reset();
+        ProfilingControl.setEnabled(!control.equals("OFF"));
+        if (control.equals("METHOD_OFF")) {
+            ProfilingControl.disable("*.ProfiledTarget.call");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void clearTrees() {
+        CallTree.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void resetControl() {
+        ProfilingControl.reset();
+    }
+
+    @Benchmark
+    public int profiled() {
+        return target.call(depth);
+    }
+}
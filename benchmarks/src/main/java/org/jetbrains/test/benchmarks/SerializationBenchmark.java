@@ -0,0 +1,78 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.FileParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of printing, storing and reading trees of the given amount of nodes in all formats.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({"1000", "100000"})
+    private int size;
+
+    private CallTree tree;
+    private byte[] text, binary;
+    private File file;
+
+    @Setup
+    public void prepare() throws IOException {
+        tree = Trees.generate(size);
+        text = tree.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        tree.writeTo(stream, CallTree.Format.BINARY);
+        binary = stream.toByteArray();
+        file = File.createTempFile("benchmark", ".tree");
+    }
+
+    @TearDown
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String printText() {
+        return tree.toString();
+    }
+
+    @Benchmark
+    public long storeText() throws IOException {
+        tree.storeInFile(file.getPath(), CallTree.Format.TEXT);
+        return file.length();
+    }
+
+    @Benchmark
+    public long storeBinary() throws IOException {
+        tree.storeInFile(file.getPath(), CallTree.Format.BINARY);
+        return file.length();
+    }
+
+    @Benchmark
+    public long storeBinaryIndexed() throws IOException {
+        tree.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+        return file.length();
+    }
+
+    @Benchmark
+    public CallTree readText() throws IOException, FileParseException {
+        return CallTree.readFromStream(new ByteArrayInputStream(text));
+    }
+
+    @Benchmark
+    public CallTree readBinary() throws IOException, FileParseException {
+        return CallTree.readFromStream(new ByteArrayInputStream(binary));
+    }
+}
@@ -0,0 +1,34 @@
+package org.jetbrains.test.benchmarks;
+
+import org.jetbrains.test.calltree.CallTree;
+
+import java.util.Random;
+
+// Generator of the trees of the given size used by benchmarks
+class Trees {
+    private static final String[] METHODS = {"void A.a()", "void A.b(int)", "int B.c(String)", "void B.d()",
+            "String C.e(int, int)", "void C.f()", "long D.g()", "void D.h(Object)"};
+    private static final int MAX_DEPTH = 12;
+
+    private Trees() {
+    }
+
+    // The tree with the given amount of finished calls, the shape is the same for the same size
+    static CallTree generate(int size) {
+        Random random = new Random(size);
+        CallTree tree = new CallTree("benchmark");
+        int depth = 0;
+        for (int i = 0; i < size; i++) {
+            while (depth > 0 && (depth == MAX_DEPTH || random.nextInt(3) == 0)) {
+                tree.finishMethodCall();
+                depth--;
+            }
+            tree.addMethodCall(METHODS[random.nextInt(METHODS.length)], i);
+            depth++;
+        }
+        while (depth-- > 0) {
+            tree.finishMethodCall();
+        }
+        return tree;
+    }
+}
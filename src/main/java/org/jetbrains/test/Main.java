@@ -1,8 +1,10 @@
 package org.jetbrains.test;
 
 import org.jetbrains.test.calltree.CallTree;
-import org.jetbrains.test.calltree.aggregator.MethodCallAmount;
-import org.jetbrains.test.calltree.aggregator.MethodCallTime;
+import org.jetbrains.test.calltree.aggregator.MethodCallCorrectedTime;
+import org.jetbrains.test.calltree.aggregator.Profile;
+import org.jetbrains.test.calltree.aggregator.ProfileAggregator;
+import org.jetbrains.test.profiller.OverheadCalibrator;
 
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -38,13 +40,25 @@ public class Main {
 
         try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(System.out))) {
             List<CallTree> trees = CallTree.getTrees();
+            Profile profile = ProfileAggregator.execute(trees);
+            for (String method : profile.getMethods()) {
+                writer.println(method + ": "
+                        + profile.getCallCount(method) + " times, "
+                        + profile.getInclusiveTime(method) + " ms, self "
+                        + profile.getSelfTime(method) + " ms, min "
+                        + profile.getMinTime(method) + " ms, max "
+                        + profile.getMaxTime(method) + " ms, mean "
+                        + profile.getMeanTime(method) + " ms");
+            }
             trees.forEach(tree -> {
-                Map<String, Integer> callsAmount = MethodCallAmount.execute(tree);
-                Map<String, Long> callsTime = MethodCallTime.execute(tree);
-                for (String method: callsAmount.keySet()) {
-                    writer.println(method + ": "
-                            + callsAmount.get(method) + " times, "
-                            + callsTime.get(method) + " ms");
+                Map<String, MethodCallCorrectedTime.Times> correctedTimes = MethodCallCorrectedTime.execute(tree,
+                        OverheadCalibrator.get());
+                for (String method : correctedTimes.keySet()) {
+                    MethodCallCorrectedTime.Times corrected = correctedTimes.get(method);
+                    writer.println(method + ": corrected "
+                            + corrected.getInclusiveTime() + " ms, self "
+                            + corrected.getSelfTime() + " ms, overhead "
+                            + corrected.getCorrection() + " ms");
                 }
                 writer.println(tree);
             });
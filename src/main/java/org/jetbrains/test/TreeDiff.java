@@ -0,0 +1,44 @@
+package org.jetbrains.test;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.FileParseException;
+import org.jetbrains.test.calltree.aggregator.ProfileDiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares two runs stored as tree files: {@code TreeDiff <before> <after> [limit]}, where every run is the tree file
+ * or the directory of per-thread tree files. Prints the changed calling context paths ranked by impact, the first 50
+ * of them by default.
+ */
+public class TreeDiff {
+    public static void main(String[] args) throws IOException, FileParseException {
+        if (args.length < 2) {
+            System.err.println("Usage: TreeDiff <before file or directory> <after file or directory> [limit]");
+            System.exit(1);
+        }
+        int limit = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        List<ProfileDiff.PathDelta> deltas = ProfileDiff.execute(open(args[0]), open(args[1]));
+        for (ProfileDiff.PathDelta delta : deltas.subList(0, Math.min(limit, deltas.size()))) {
+            System.out.println(delta);
+        }
+    }
+
+    private static List<CallTree> open(String pathname) throws IOException, FileParseException {
+        File file = new File(pathname);
+        File[] files = file.isDirectory() ? file.listFiles(File::isFile) : new File[]{file};
+        if (files == null) {
+            throw new IOException("Can't list files of " + pathname);
+        }
+        Arrays.sort(files);
+        List<CallTree> trees = new ArrayList<>();
+        for (File tree : files) {
+            trees.add(CallTree.openFile(tree.getPath()));
+        }
+        return trees;
+    }
+}
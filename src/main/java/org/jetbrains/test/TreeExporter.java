@@ -0,0 +1,54 @@
+package org.jetbrains.test;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.FileParseException;
+import org.jetbrains.test.calltree.OverheadCalibration;
+import org.jetbrains.test.calltree.export.ChromeTraceExporter;
+import org.jetbrains.test.calltree.export.CollapsedStackExporter;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exports the stored trees for the external viewers:
+ * {@code TreeExporter collapsed|chrome [-corrected <call overhead ns> <inner overhead ns>] <output> <tree file>...}.
+ * The binary files stored with the index are mapped, so they are exported without reading the whole tree into memory.
+ * The collapsed stacks may be exported with the recording overhead subtracted (see {@link OverheadCalibration}), it
+ * should be measured on the machine which recorded the trees. The trace keeps the measured times, so the calls stay
+ * nested on the timeline.
+ */
+public class TreeExporter {
+    public static void main(String[] args) throws IOException, FileParseException {
+        int first = 1;
+        OverheadCalibration calibration = OverheadCalibration.NONE;
+        if (args.length > 3 && args[0].equals("collapsed") && args[1].equals("-corrected")) {
+            calibration = new OverheadCalibration(Long.parseLong(args[2]), Long.parseLong(args[3]));
+            first = 4;
+        }
+        if (args.length < first + 2 || !args[0].equals("collapsed") && !args[0].equals("chrome")) {
+            System.err.println("Usage: TreeExporter collapsed|chrome [-corrected <call overhead ns> "
+                    + "<inner overhead ns>] <output> <tree file>...");
+            System.exit(1);
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[first]),
+                StandardCharsets.UTF_8))) {
+            if (args[0].equals("collapsed")) {
+                CollapsedStackExporter exporter = new CollapsedStackExporter(calibration);
+                for (int i = first + 1; i < args.length; i++) {
+                    exporter.add(CallTree.openFile(args[i]));
+                }
+                exporter.writeTo(out);
+            } else {
+                try (ChromeTraceExporter exporter = new ChromeTraceExporter(out)) {
+                    for (int i = first + 1; i < args.length; i++) {
+                        exporter.add(CallTree.openFile(args[i]));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.jetbrains.test;
+
+import org.jetbrains.test.calltree.FileParseException;
+import org.jetbrains.test.calltree.aggregator.ProfileMerger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the tree files by calling context paths into one profile:
+ * {@code TreeMerge [-memory <MB>] [-threads <n>] [-spill <directory>] <output> <file or directory>...}. The memory
+ * budget is 256 MB and every available processor gets the worker by default, the run files are spilled to the
+ * temporary-file directory.
+ */
+public class TreeMerge {
+    public static void main(String[] args) throws IOException, FileParseException {
+        long memory = 256L << 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File spill = null;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-memory":
+                    memory = Long.parseLong(args[++i]) << 20;
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-spill":
+                    spill = new File(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (args.length - i < 2) {
+            System.err.println("Usage: TreeMerge [-memory <MB>] [-threads <n>] [-spill <directory>]"
+                    + " <output> <file or directory>...");
+            System.exit(1);
+        }
+        File output = new File(args[i]);
+        List<File> files = new ArrayList<>();
+        for (i++; i < args.length; i++) {
+            File file = new File(args[i]);
+            File[] children = file.isDirectory() ? file.listFiles(File::isFile) : new File[]{file};
+            if (children == null) {
+                throw new IOException("Can't list files of " + file);
+            }
+            Arrays.sort(children);
+            files.addAll(Arrays.asList(children));
+        }
+        long start = System.nanoTime();
+        long paths;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output),
+                StandardCharsets.UTF_8))) {
+            paths = new ProfileMerger(memory, threads, spill).merge(files, out);
+        }
+        System.out.println("Merged " + files.size() + " files into " + paths + " paths in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,64 @@
+package org.jetbrains.test;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.FileParseException;
+import org.jetbrains.test.calltree.TreeQuery;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the calls in the stored tree: {@code TreeSearch <tree file> [options]}. The options are
+ * {@code -method <name>}, {@code -min <ms>}, {@code -max <ms>}, {@code -depth <min> <max>},
+ * {@code -window <from ms> <to ms>} relative to the start of the root and {@code -limit <n>}, the first 50 calls are
+ * printed by default. The binary files stored in {@code BINARY_INDEXED} format are searched by the index of methods
+ * stored in the file without decoding the whole tree.
+ */
+public class TreeSearch {
+    public static void main(String[] args) throws IOException, FileParseException {
+        if (args.length < 1) {
+            System.err.println("Usage: TreeSearch <tree file> [-method <name>] [-min <ms>] [-max <ms>]"
+                    + " [-depth <min> <max>] [-window <from ms> <to ms>] [-limit <n>]");
+            System.exit(1);
+        }
+        CallTree tree = CallTree.openFile(args[0]);
+        Iterator<CallTree.Node> nodes = tree.iterator();
+        long rootStart = nodes.hasNext() ? nodes.next().getStartCallTime() : 0;
+        long minDuration = Long.MIN_VALUE, maxDuration = Long.MAX_VALUE;
+        TreeQuery query = new TreeQuery().limit(50);
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-method":
+                    query.method(args[++i]);
+                    break;
+                case "-min":
+                    minDuration = millis(args[++i]);
+                    break;
+                case "-max":
+                    maxDuration = millis(args[++i]);
+                    break;
+                case "-depth":
+                    query.depth(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]));
+                    break;
+                case "-window":
+                    long from = rootStart + millis(args[++i]);
+                    query.startedBetween(from, rootStart + millis(args[++i]));
+                    break;
+                case "-limit":
+                    query.limit(Integer.parseInt(args[++i]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        query.duration(minDuration, maxDuration);
+        for (TreeQuery.Match match : query.execute(tree)) {
+            System.out.println(match);
+        }
+    }
+
+    private static long millis(String value) {
+        return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+    }
+}
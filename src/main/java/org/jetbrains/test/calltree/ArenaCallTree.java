@@ -0,0 +1,353 @@
+package org.jetbrains.test.calltree;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * CallTree which stores the calls in growable primitive arrays instead of {@link Node} objects. The nodes are
+ * numbered in order of calls, which is the pre-order of the tree, and every node takes the name id, the indices of
+ * parent, first child, last child and next sibling, the start and finish times and the sampling weight. Name ids are the ones of
+ * {@link SymbolTable}. Nodes returned by
+ * {@link #iterator()} and {@link Node#getChildren()} are the read-only views of these arrays created on access.
+ * <p>
+ * Recording a call doesn't allocate except for capturing its arguments and growing the arrays.
+ */
+class ArenaCallTree extends CallTree {
+    private final Arena arena;
+
+    private ArenaCallTree(Arena arena) {
+        super(arena.view(0), null);
+        this.arena = arena;
+    }
+
+    ArenaCallTree(String rootName) {
+        this(new Arena(rootName, System.nanoTime()));
+        arena.publish();
+    }
+
+    @Override
+    void recordCall(int methodId, Object arguments, int weight) {
+        arena.add(methodId, arguments, System.nanoTime());
+        arena.weights[arena.size - 1] = weight;
+        arena.publish();
+    }
+
+    @Override
+    void recordFinish(boolean exceptionally) {
+        if (arena.depth == 1) {
+            throw new IllegalStateException("Trying to finish last registered method, but hadn't added it before");
+        }
+        int node = arena.stack[--arena.depth];
+        arena.ends[node] = System.nanoTime();
+        arena.exceptional[node] = exceptionally;
+        recordLatency(arena.nameIds[node], arena.ends[node] - arena.starts[node], arena.weights[node]);
+        arena.publish();
+    }
+
+    @Override
+    int nodeCount() {
+        return arena.size - 1;
+    }
+
+    // the nodes can't be removed from the middle of the arrays
+    @Override
+    boolean evictOldest() {
+        return false;
+    }
+
+    // The nodes are copied from the arrays published by the recording thread, see Arena#publish()
+    @Override
+    public CallTree snapshot() {
+        int size = arena.published;
+        Arena.Columns columns = arena.columns;
+        Node[] copies = new Node[size];
+        for (int i = 0; i < size; i++) {
+            Node copy = columns.copy(i);
+            if (i != 0) {
+                copies[columns.parents[i]].addChild(copy);
+                copies[i - 1].next = copy;
+            }
+            copies[i] = copy;
+        }
+        CallTree snapshot = new CallTree(copies[0], copies[size - 1]);
+        copyLimitsState(snapshot);
+        return snapshot;
+    }
+
+    // The nodes are numbered in pre-order, so the new nodes are the ones published after the previous call
+    @Override
+    DumpCursor dumpCursor() {
+        return new DumpCursor.Incremental<Integer>(this) {
+            private int size;
+            private Arena.Columns columns;
+            private int[] depths = new int[64];
+
+            @Override
+            List<Integer> published() {
+                int published = arena.published;
+                columns = arena.columns;
+                if (published > depths.length) {
+                    depths = Arrays.copyOf(depths, Math.max(published, depths.length * 2));
+                }
+                List<Integer> nodes = new ArrayList<>(published - size);
+                for (; size < published; size++) {
+                    depths[size] = size == 0 ? 0 : depths[columns.parents[size]] + 1;
+                    nodes.add(size);
+                }
+                return nodes;
+            }
+
+            @Override
+            int depth(Integer node) {
+                return depths[node];
+            }
+
+            @Override
+            boolean isFinished(Integer node) {
+                return node != 0 && columns.ends[node] != -1;
+            }
+
+            @Override
+            Node copy(Integer node) {
+                return columns.copy(node);
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Node> iterator() {
+        return new Iterator<Node>() {
+            private int current = 0;
+
+            @Override
+            public boolean hasNext() {
+                return current < arena.size;
+            }
+
+            @Override
+            public Node next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return arena.view(current++);
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ArenaCallTree && super.equals(obj)
+                && Arrays.equals(arena.stackTrace(), ((ArenaCallTree) obj).arena.stackTrace());
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() ^ Arrays.hashCode(arena.stackTrace());
+    }
+
+    private static class Arena {
+        private static final int NONE = -1;
+        private static final AtomicIntegerFieldUpdater<Arena> PUBLISHED =
+                AtomicIntegerFieldUpdater.newUpdater(Arena.class, "published");
+
+        private int[] nameIds = new int[64], weights = new int[64];
+        private Object[] arguments = new Object[64];
+        private int[] parents = new int[64], firstChildren = new int[64], lastChildren = new int[64],
+                nextSiblings = new int[64];
+        private long[] starts = new long[64], ends = new long[64];
+        private boolean[] exceptional = new boolean[64];
+        private int size;
+
+        private int[] stack = new int[16];
+        private int depth;
+
+        // The amount of nodes visible to snapshots and the arrays they are read from. The arrays are published again
+        // after they are grown, so the reader never sees the new arrays without their content.
+        private volatile int published;
+        private volatile Columns columns = new Columns(this);
+
+        // hashes of all nodes computed at once, they are valid while the size is the same
+        private int[] hashes;
+        private int hashesSize = -1;
+
+        Arena(String rootName, long startCallTime) {
+            add(SymbolTable.intern(rootName), null, startCallTime);
+        }
+
+        void add(int nameId, Object args, long startCallTime) {
+            if (size == nameIds.length) {
+                grow();
+            }
+            int node = size++;
+            nameIds[node] = nameId;
+            arguments[node] = args;
+            firstChildren[node] = lastChildren[node] = nextSiblings[node] = NONE;
+            starts[node] = startCallTime;
+            ends[node] = -1;
+            exceptional[node] = false;
+            weights[node] = 1;
+            if (depth == 0) {
+                parents[node] = NONE;
+            } else {
+                int parent = stack[depth - 1];
+                parents[node] = parent;
+                if (lastChildren[parent] == NONE) {
+                    firstChildren[parent] = node;
+                } else {
+                    nextSiblings[lastChildren[parent]] = node;
+                }
+                lastChildren[parent] = node;
+            }
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = node;
+        }
+
+        private void grow() {
+            int capacity = size * 2;
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+            arguments = Arrays.copyOf(arguments, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            lastChildren = Arrays.copyOf(lastChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            exceptional = Arrays.copyOf(exceptional, capacity);
+            columns = new Columns(this);
+        }
+
+        // Publishes all nodes and their finish times written before with release semantics
+        void publish() {
+            PUBLISHED.lazySet(this, size);
+        }
+
+        String name(int node) {
+            String name = SymbolTable.name(nameIds[node]);
+            Object args = frozenArguments(arguments, node);
+            return args == null ? name : name + "{" + args + "}";
+        }
+
+        // Converts the lazy arguments of the node to the string on the first use and stores it instead of them, like
+        // Node#getName() does, so the name and the hash of the node don't change and the arguments are converted once.
+        static Object frozenArguments(Object[] arguments, int node) {
+            Object args = arguments[node];
+            if (args != null && !(args instanceof String)) {
+                args = args.toString();
+                arguments[node] = args;
+            }
+            return args;
+        }
+
+        int[] stackTrace() {
+            return Arrays.copyOf(stack, depth);
+        }
+
+        // The children always have greater indices than their parent, so all hashes are computed in one pass
+        // from the last node to the first one.
+        int hash(int node) {
+            if (hashesSize != size) {
+                hashes = new int[size];
+                for (int i = size - 1; i >= 0; i--) {
+                    int childrenHash = 1;
+                    for (int child = firstChildren[i]; child != NONE; child = nextSiblings[child]) {
+                        childrenHash = 31 * childrenHash + hashes[child];
+                    }
+                    hashes[i] = (name(i).hashCode() * 1367) ^ childrenHash;
+                }
+                hashesSize = size;
+            }
+            return hashes[node];
+        }
+
+        Node view(int node) {
+            return new View(this, node);
+        }
+
+        private static class Columns {
+            private final int[] nameIds, weights, parents;
+            private final Object[] arguments;
+            private final long[] starts, ends;
+            private final boolean[] exceptional;
+
+            Columns(Arena arena) {
+                nameIds = arena.nameIds;
+                weights = arena.weights;
+                parents = arena.parents;
+                arguments = arena.arguments;
+                starts = arena.starts;
+                ends = arena.ends;
+                exceptional = arena.exceptional;
+            }
+
+            // Returns the detached copy of the node, the root is named by its name id
+            Node copy(int node) {
+                Node copy = node == 0
+                        ? new Node(SymbolTable.name(nameIds[0]), CallTree.DEFAULT_SHIFT, starts[0])
+                        : new Node(nameIds[node], frozenArguments(arguments, node), CallTree.DEFAULT_SHIFT,
+                        starts[node]);
+                copy.setEndCallTime(ends[node]);
+                copy.exceptional = exceptional[node];
+                copy.weight = weights[node];
+                return copy;
+            }
+        }
+    }
+
+    private static class View extends Node {
+        private final Arena arena;
+        private final int index;
+        private int[] childIndices;
+        private final List<Node> children = new AbstractList<Node>() {
+            @Override
+            public Node get(int i) {
+                return arena.view(childIndices()[i]);
+            }
+
+            @Override
+            public int size() {
+                return childIndices().length;
+            }
+        };
+
+        View(Arena arena, int index) {
+            super(arena.nameIds[index], Arena.frozenArguments(arena.arguments, index), arena.starts[index],
+                    arena.ends[index]);
+            this.arena = arena;
+            this.index = index;
+            this.exceptional = arena.exceptional[index];
+            this.weight = arena.weights[index];
+        }
+
+        private int[] childIndices() {
+            if (childIndices == null) {
+                int count = 0;
+                for (int child = arena.firstChildren[index]; child != Arena.NONE; child = arena.nextSiblings[child]) {
+                    count++;
+                }
+                childIndices = new int[count];
+                for (int i = 0, child = arena.firstChildren[index]; i < count; i++, child = arena.nextSiblings[child]) {
+                    childIndices[i] = child;
+                }
+            }
+            return childIndices;
+        }
+
+        @Override
+        List<Node> children() {
+            return children;
+        }
+
+        @Override
+        public int hashCode() {
+            return arena.hash(index);
+        }
+    }
+}
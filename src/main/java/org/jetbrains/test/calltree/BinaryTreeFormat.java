@@ -0,0 +1,435 @@
+package org.jetbrains.test.calltree;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary representation of {@link CallTree}.
+ * <p>
+ * The stream starts with {@link #MAGIC}, the version byte and the byte of flags: {@link #INDEXED} if the index of
+ * nodes and the file trailer are stored, {@link #CONTEXTS} for the trees of
+ * {@link CallTree.RecordingMode#CALLING_CONTEXTS} mode. Then the nodes follow in pre-order. Every node is written as
+ * a name reference, the start time as a delta to the parent's start time, the duration, the sampling weight (see
+ * {@link Sampling}) and the number of children, all of them as varints. The lowest bit of the duration is the flag of
+ * the call finished by the exception. Names are deduplicated: the reference is an index in the table of already
+ * written names and if it equals to the size of that table, the new name itself follows. In the trees of calling
+ * contexts the weight is followed by the counters of merged calls of the node: the amount of calls, the estimated
+ * amount, the total time, the estimated time, the minimal and the maximal time. The nodes are followed by the hash
+ * code of the root node, which is checked while reading.
+ * <p>
+ * The indices used by {@link MappedCallTree} and {@link TreeQuery} take more space than the tree itself, so they are
+ * written only for {@link CallTree.Format#BINARY_INDEXED}: the number of nodes and for every node in pre-order its
+ * offset, the size of its subtree, the index of its parent and its hash code; then the number of names and the offset
+ * of every name definition; then the index of methods (see {@link MethodIndex}). The plain
+ * {@link CallTree.Format#BINARY} tree has no indices.
+ * <p>
+ * Then the counters of calls without nodes (see {@link RecordingLimits}) follow: the amount of dropped nodes, the
+ * number of methods with collapsed calls and for every such method its name, the amount and the total time of its
+ * collapsed calls. They follow the indices, so {@link MappedCallTree} finds them without decoding the nodes. The
+ * indexed tree ends with the trailer: the offset of the directory of the index of methods, the offset of the index of
+ * nodes and {@link #MAGIC} once more.
+ */
+class BinaryTreeFormat {
+    static final byte[] MAGIC = {'C', 'T', 'R', 'E'};
+    static final int VERSION = 1;
+    static final int INDEXED = 1, CONTEXTS = 2;
+    static final int INDEX_ENTRY_SIZE = 20;
+    static final int TRAILER_SIZE = 20;
+    private static final int MAX_NAME_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int NAME_CHUNK = 8192;
+
+    private BinaryTreeFormat() {
+    }
+
+    // checks whether the stream starts with the header of binary tree stored with the index, the stream is consumed
+    static boolean isIndexed(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    return false;
+                }
+            }
+            int version = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            return version == VERSION && (flags & INDEXED) != 0;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    // checks whether the stream starts with binary header, the stream position is not changed
+    static boolean isBinary(BufferedInputStream stream) throws IOException {
+        stream.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (stream.read() != (b & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /**
+     * Writes the tree, the indices used by {@link MappedCallTree} and {@link TreeQuery} are written only if
+     * {@code indexed} is set. The plain tree is written keeping only the names and the pending siblings in memory.
+     */
+    static void write(CallTree tree, OutputStream stream, boolean indexed) throws IOException {
+        CallTree.Node root = tree.root();
+        CountingOutputStream counter = new CountingOutputStream(stream);
+        DataOutputStream out = new DataOutputStream(counter);
+        boolean contexts = root instanceof CallTree.ContextNode;
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte((indexed ? INDEXED : 0) | (contexts ? CONTEXTS : 0));
+
+        Map<String, Integer> names = new HashMap<>();
+        NodeIndex index = indexed ? new NodeIndex() : null;
+        MethodIndex.Writer methods = indexed ? new MethodIndex.Writer() : null;
+        // the pending nodes with the start times and the indices of their parents
+        CallTree.Node[] stack = {root};
+        long[] parentStarts = {0};
+        int[] parentIndices = {-1};
+        for (int size = 1, count = 0; size > 0; count++) {
+            size--;
+            CallTree.Node node = stack[size];
+            stack[size] = null;
+            long parentStart = parentStarts[size];
+            if (index != null) {
+                index.add(node, counter.count, parentIndices[size]);
+                methods.add(node, parentIndices[size]);
+            }
+
+            // the name with arguments is built on every call
+            String name = node.getName();
+            Integer id = names.get(name);
+            if (id == null) {
+                writeVarint(out, names.size());
+                if (index != null) {
+                    index.nameOffsets.add(counter.count);
+                }
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+                names.put(name, names.size());
+            } else {
+                writeVarint(out, id);
+            }
+            writeVarint(out, zigZag(node.getStartCallTime() - parentStart));
+            writeVarint(out, encodeDuration(node.getStartCallTime(), node.getEndCallTime(), node.isExceptional()));
+            writeVarint(out, node.getSampleWeight());
+            if (contexts) {
+                writeVarint(out, node.getCallCount());
+                writeVarint(out, node.getEstimatedCallCount());
+                writeVarint(out, node.executionTime());
+                writeVarint(out, node.getEstimatedExecutionTime());
+                writeVarint(out, node.getMinExecutionTime());
+                writeVarint(out, node.getMaxExecutionTime());
+            }
+
+            List<CallTree.Node> children = node.children();
+            writeVarint(out, children.size());
+            if (size + children.size() > stack.length) {
+                int length = Math.max(stack.length * 2, size + children.size());
+                stack = Arrays.copyOf(stack, length);
+                parentStarts = Arrays.copyOf(parentStarts, length);
+                parentIndices = Arrays.copyOf(parentIndices, length);
+            }
+            for (int i = children.size() - 1; i >= 0; i--, size++) {
+                stack[size] = children.get(i);
+                parentStarts[size] = node.getStartCallTime();
+                parentIndices[size] = count;
+            }
+        }
+        out.writeInt(root.hashCode());
+        long indexOffset = counter.count, directory = 0;
+        if (index != null) {
+            index.write(out);
+            directory = methods.write(out, counter);
+        }
+        writeLimits(out, tree);
+        if (index != null) {
+            out.writeLong(directory);
+            out.writeLong(indexOffset);
+            out.write(MAGIC);
+        }
+        out.flush();
+    }
+
+    // The counters are copied first, since the counters of the live tree may grow while they are written
+    private static void writeLimits(DataOutputStream out, CallTree tree) throws IOException {
+        long[] counts = tree.collapsedCounts(), times = tree.collapsedTimes();
+        int length = counts == null || times == null ? 0 : Math.min(counts.length, times.length);
+        counts = length == 0 ? new long[0] : Arrays.copyOf(counts, length);
+        times = length == 0 ? new long[0] : Arrays.copyOf(times, length);
+        int methods = 0;
+        for (long count : counts) {
+            if (count != 0) {
+                methods++;
+            }
+        }
+        writeVarint(out, tree.getDroppedNodes());
+        writeVarint(out, methods);
+        for (int id = 0; id < length; id++) {
+            if (counts[id] != 0) {
+                byte[] bytes = SymbolTable.name(id).getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+                writeVarint(out, counts[id]);
+                writeVarint(out, times[id]);
+            }
+        }
+    }
+
+    private static void readLimits(DataInputStream in, CallTree tree) throws IOException, FileParseException {
+        tree.addDroppedNodes(readVarint(in));
+        for (long methods = readVarint(in); methods > 0; methods--) {
+            String name = readName(in, readVarint(in));
+            long count = readVarint(in);
+            tree.addCollapsedCalls(SymbolTable.intern(name), count, readVarint(in));
+        }
+    }
+
+    static CallTree read(InputStream stream) throws IOException, FileParseException {
+        DataInputStream in = new DataInputStream(stream);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new FileParseException("The given file doesn't contain tree in binary format");
+            }
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new FileParseException("Unsupported binary tree format version " + version);
+        }
+        int flags = in.readUnsignedByte();
+
+        List<String> names = new ArrayList<>();
+        FunctionIds functionIds = new FunctionIds();
+        Deque<CallTree.Node> parents = new ArrayDeque<>();
+        Deque<Long> remainingChildren = new ArrayDeque<>();
+        CallTree.Node root = null, last = null;
+        try {
+            do {
+                long parentStart = parents.isEmpty() ? 0 : parents.peek().getStartCallTime();
+                CallTree.Node node = readNode(in, flags, names, functionIds, parentStart);
+                if (root == null) {
+                    root = node;
+                } else {
+                    parents.peek().addChild(node);
+                    last.next = node;
+                    remainingChildren.push(remainingChildren.pop() - 1);
+                }
+                last = node;
+                parents.push(node);
+                remainingChildren.push(readVarint(in));
+                while (!parents.isEmpty() && remainingChildren.peek() == 0) {
+                    parents.pop();
+                    remainingChildren.pop();
+                }
+            } while (!parents.isEmpty());
+
+            if (in.readInt() != root.hashCode()) {
+                throw new FileParseException("An error ocurred while parsing tree, Hashcodes are not equal.");
+            }
+            CallTree tree = new CallTree(root, last);
+            if ((flags & INDEXED) != 0) {
+                skipIndex(in);
+            }
+            readLimits(in, tree);
+            if ((flags & INDEXED) != 0) {
+                skipFully(in, TRAILER_SIZE);
+            }
+            return tree;
+        } catch (EOFException e) {
+            throw new FileParseException("Unexpected end of binary tree", e);
+        }
+    }
+
+    // Reads the trees written one after another till the end of the stream
+    static List<CallTree> readAll(BufferedInputStream stream) throws IOException, FileParseException {
+        List<CallTree> trees = new ArrayList<>();
+        do {
+            trees.add(read(stream));
+        } while (isBinary(stream));
+        stream.mark(1);
+        if (stream.read() != -1) {
+            throw new FileParseException("The given file contains unexpected data after the tree");
+        }
+        return trees;
+    }
+
+    // the indices are used only by MappedCallTree, so they are skipped while reading the stream
+    private static void skipIndex(DataInputStream in) throws IOException, FileParseException {
+        int nodes = in.readInt();
+        skipFully(in, (long) nodes * INDEX_ENTRY_SIZE);
+        skipFully(in, (long) in.readInt() * 8);
+        MethodIndex.skip(in, nodes);
+    }
+
+    static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped == 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static CallTree.Node readNode(DataInputStream in, int flags, List<String> names, FunctionIds functionIds,
+                                          long parentStart) throws IOException, FileParseException {
+        long id = readVarint(in);
+        if (id == names.size()) {
+            names.add(readName(in, readVarint(in)));
+        } else if (id > names.size()) {
+            throw new FileParseException("Reference to unknown name " + id);
+        }
+        String name = names.get((int) id);
+        int functionId = functionIds.of(name);
+        long start = parentStart + unZigZag(readVarint(in));
+        long duration = readVarint(in);
+        long end = decodeEnd(start, duration);
+        CallTree.Node node;
+        int weight = (int) readVarint(in);
+        if ((flags & CONTEXTS) != 0) {
+            CallTree.ContextNode contextNode = new CallTree.ContextNode(functionId, name, CallTree.DEFAULT_SHIFT,
+                    start, end);
+            long callCount = readVarint(in);
+            if (callCount > Integer.MAX_VALUE) {
+                throw new FileParseException("Malformed amount of calls " + callCount);
+            }
+            contextNode.setCounters((int) callCount, readVarint(in), readVarint(in), readVarint(in), readVarint(in),
+                    readVarint(in));
+            node = contextNode;
+        } else {
+            node = new CallTree.Node(functionId, name, CallTree.DEFAULT_SHIFT, start, end);
+        }
+        node.exceptional = isExceptional(duration);
+        node.weight = weight;
+        return node;
+    }
+
+    // The length of the name is untrusted, so the bytes are read by chunks and the buffer grows only as far as the
+    // bytes are really present, the truncated name fails with EOFException without allocating the claimed length
+    private static String readName(DataInputStream in, long length) throws IOException, FileParseException {
+        if (length < 0 || length > MAX_NAME_LENGTH) {
+            throw new FileParseException("Malformed name length " + length);
+        }
+        byte[] bytes = new byte[(int) Math.min(length, NAME_CHUNK)];
+        for (int read = 0; read < length; ) {
+            if (read == bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, (long) read * 2));
+            }
+            in.readFully(bytes, read, bytes.length - read);
+            read = bytes.length;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static long encodeDuration(long start, long end, boolean exceptional) {
+        long duration = end == -1 ? 0 : zigZag(end - start) + 1;
+        return duration << 1 | (exceptional ? 1 : 0);
+    }
+
+    static long decodeEnd(long start, long duration) {
+        duration >>>= 1;
+        return duration == 0 ? -1 : start + unZigZag(duration - 1);
+    }
+
+    static boolean isExceptional(long duration) {
+        return (duration & 1) != 0;
+    }
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarint(DataInput in) throws IOException, FileParseException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new FileParseException("Malformed varint");
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // The index of nodes collected while the indexed tree is written
+    private static class NodeIndex {
+        private final List<Long> nameOffsets = new ArrayList<>();
+        private long[] offsets = new long[16];
+        private int[] parents = new int[16];
+        private int[] hashes = new int[16];
+        private int count;
+
+        void add(CallTree.Node node, long offset, int parent) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                parents = Arrays.copyOf(parents, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            offsets[count] = offset;
+            parents[count] = parent;
+            hashes[count] = node.hashCode();
+            count++;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            int[] subtreeSizes = new int[count];
+            Arrays.fill(subtreeSizes, 1);
+            for (int i = count - 1; i > 0; i--) {
+                subtreeSizes[parents[i]] += subtreeSizes[i];
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(subtreeSizes[i]);
+                out.writeInt(parents[i]);
+                out.writeInt(hashes[i]);
+            }
+            out.writeInt(nameOffsets.size());
+            for (long offset : nameOffsets) {
+                out.writeLong(offset);
+            }
+        }
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
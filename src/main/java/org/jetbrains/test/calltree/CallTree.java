@@ -1,8 +1,9 @@
 package org.jetbrains.test.calltree;
 
-import javafx.util.Pair;
+import org.jetbrains.test.calltree.utils.RingList;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
@@ -10,8 +11,11 @@ import java.nio.file.Path;
 import java.nio.file.attribute.FileAttribute;
 import java.sql.Time;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.function.Consumer;
 
 import static org.jetbrains.test.calltree.utils.Utils.*;
@@ -23,10 +27,56 @@ import static org.jetbrains.test.calltree.utils.Utils.*;
  */
 public class CallTree implements Iterable<CallTree.Node> {
     public static final int DEFAULT_SHIFT = 3;
-    private static final Map<Thread, CallTree> trees = new ConcurrentHashMap<>();
+    // The tree of the current thread. The live trees are registered with the weak references to their threads, so
+    // the finished threads are not kept. The trees of finished threads are moved to the completed ones lazily by
+    // getTrees() and drainCompletedTrees(), so registering the tree of the new thread doesn't scan the live ones.
+    private static final ThreadLocal<CallTree> currentTree = new ThreadLocal<>();
+    private static final Queue<LiveTree> liveTrees = new ConcurrentLinkedQueue<>();
+    private static final Queue<CallTree> completedTrees = new ConcurrentLinkedQueue<>();
+    // incremented by clear(), the trees of previous generations are not returned by getInstance()
+    private static final AtomicInteger generation = new AtomicInteger();
+    private int treeGeneration = -1;
+    private static volatile RecordingMode defaultRecordingMode = RecordingMode.CALLS;
+    private static volatile Storage defaultStorage = Storage.NODES;
+    private static volatile Sampling defaultSampling = Sampling.ALL;
+    private static volatile boolean defaultLatencyHistograms = false;
+    private static volatile RecordingLimits defaultLimits = RecordingLimits.NONE;
+    // the length of the window, after which the adaptive sampling interval is adjusted
+    private static final long SAMPLING_WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final AtomicReferenceFieldUpdater<CallTree, Node> PUBLISHED =
+            AtomicReferenceFieldUpdater.newUpdater(CallTree.class, Node.class, "published");
+    private static final AtomicReferenceFieldUpdater<CallTree, LatencyHistogram[]> PUBLISHED_HISTOGRAMS =
+            AtomicReferenceFieldUpdater.newUpdater(CallTree.class, LatencyHistogram[].class, "publishedHistograms");
+    private final RecordingMode recordingMode;
+    // The last node of the pre-order visible to snapshot(). It is written with release semantics after the node is
+    // linked and after every finish, so all nodes up to it and their finish times are visible to the thread reading it.
+    private volatile Node published;
+    private Sampling sampling = Sampling.ALL;
+    // The state of sampling: the depth of the skipped subtree, the depth of the recorded one, the current interval
+    // between recorded root-level calls, the amount of root-level calls left to the next recorded one and the weight
+    // of the recorded subtree. The nodes recorded since the start of the current window bound the adaptive interval.
+    private int skipDepth, recordDepth, samplingInterval = 1, countdown = 1, sampleWeight = 1;
+    private long recordedNodes, windowStart, windowRecordedNodes;
     private final Node root;
     private Node last;
     private final Stack<Node> currentTreeStackTrace = new Stack<>();
+    // latency histograms of methods indexed by their ids, null if they are not recorded
+    private LatencyHistogram[] histograms;
+    // The histograms visible to getLatencyHistograms(). They are written with release semantics after every recorded
+    // duration like the published node, so the durations recorded before are visible to the thread reading them.
+    private volatile LatencyHistogram[] publishedHistograms;
+    // the ids, start times and weights of unfinished calls in HISTOGRAMS mode
+    private int[] openIds, openWeights;
+    private long[] openStarts;
+    private int openCount;
+    private RecordingLimits limits = RecordingLimits.NONE;
+    // The state of limits: the amount of nodes except the root, the depth of the subtree without nodes, whether its
+    // calls are collapsed and the amount of calls without nodes. The collapsed calls use the stack of unfinished
+    // calls of HISTOGRAMS mode, their amounts and times are kept by method ids.
+    private int nodeCount, overflowDepth;
+    private boolean collapsing;
+    private long droppedNodes;
+    private long[] collapsedCounts, collapsedTimes;
 
     /**
      * Creates in instance of CallTree with given name for the root vertex with default shift.
@@ -40,91 +90,367 @@ public class CallTree implements Iterable<CallTree.Node> {
     // Constructor with the shift of nested call in output relatively to calling method, throws illegalArgumentException
     // if shift is negative
     public CallTree(String rootName, int shift) {
-        this(new Node(rootName, shift, System.nanoTime()));
+        this(rootName, shift, RecordingMode.CALLS);
     }
 
-    private CallTree(Node root) {
+    /**
+     * Creates in instance of CallTree with given name for the root vertex, shift and the way of recording calls.
+     *
+     * @param rootName      name of root vertex
+     * @param shift         shift of nested call in output relatively to calling method
+     * @param recordingMode the way of recording calls
+     * @see RecordingMode
+     */
+    public CallTree(String rootName, int shift, RecordingMode recordingMode) {
+        this(recordingMode == RecordingMode.CALLING_CONTEXTS
+                ? new ContextNode(rootName, shift, System.nanoTime())
+                : new Node(rootName, shift, System.nanoTime()), recordingMode);
+    }
+
+    private CallTree(Node root, RecordingMode recordingMode) {
+        this(root, root, recordingMode);
+    }
+
+    // Constructor for deserialized trees, last is the last node of the pre-order traversal
+    CallTree(Node root, Node last) {
+        this(root, last, RecordingMode.CALLS);
+    }
+
+    private CallTree(Node root, Node last, RecordingMode recordingMode) {
         this.root = root;
-        last = root;
+        this.last = last;
+        this.published = last;
+        this.recordingMode = recordingMode;
+        if (recordingMode == RecordingMode.HISTOGRAMS) {
+            allocateOpenCalls();
+            setLatencyHistograms(true);
+        }
         currentTreeStackTrace.add(root);
     }
 
+    /**
+     * Sets the recording mode of trees created by {@link CallTree#getInstance()} after this call. The already created
+     * trees keep their mode.
+     *
+     * @param recordingMode the way of recording calls
+     */
+    public static void setDefaultRecordingMode(RecordingMode recordingMode) {
+        defaultRecordingMode = recordingMode;
+    }
+
+    /**
+     * Sets the storage of trees created by {@link CallTree#getInstance()} after this call. The already created
+     * trees keep their storage.
+     *
+     * @param storage the way of storing calls
+     */
+    public static void setDefaultStorage(Storage storage) {
+        defaultStorage = storage;
+    }
+
+    /**
+     * Sets the sampling of trees created by {@link CallTree#getInstance()} after this call. The already created
+     * trees keep their sampling.
+     *
+     * @param sampling the way of sampling calls
+     */
+    public static void setDefaultSampling(Sampling sampling) {
+        defaultSampling = sampling;
+    }
+
+    /**
+     * Sets whether the trees created by {@link CallTree#getInstance()} after this call record latency histograms of
+     * methods. The already created trees keep their setting.
+     */
+    public static void setDefaultLatencyHistograms(boolean enabled) {
+        defaultLatencyHistograms = enabled;
+    }
+
+    /**
+     * Sets the memory limits of trees created by {@link CallTree#getInstance()} after this call. The already created
+     * trees keep their limits.
+     *
+     * @param limits the bounds of the amount of nodes and their depth
+     */
+    public static void setDefaultLimits(RecordingLimits limits) {
+        defaultLimits = limits;
+    }
+
+    public RecordingMode getRecordingMode() {
+        return recordingMode;
+    }
+
+    public Sampling getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Sets the sampling of the next root-level calls of this tree.
+     *
+     * @param sampling the way of sampling calls
+     * @see Sampling
+     */
+    public void setSampling(Sampling sampling) {
+        this.sampling = sampling;
+        samplingInterval = sampling.interval;
+        countdown = 1;
+        windowStart = 0;
+    }
+
+    // Returns the current amount of root-level calls per recorded one, it changes over time for adaptive sampling
+    public int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    public RecordingLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Sets the memory limits of the next calls of this tree. The nodes recorded before are kept even if they exceed
+     * the new limits.
+     *
+     * @param limits the bounds of the amount of nodes and their depth
+     * @see RecordingLimits
+     */
+    public void setLimits(RecordingLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Returns the amount of calls recorded without nodes or whose nodes were evicted because of the limits, the
+     * calls skipped by sampling are not counted.
+     *
+     * @see RecordingLimits
+     */
+    public long getDroppedNodes() {
+        return droppedNodes;
+    }
+
+    // Returns the amounts of calls without nodes by method names, see RecordingLimits.OverflowPolicy#COLLAPSE
+    public Map<String, Long> getCollapsedCalls() {
+        return collapsedByName(collapsedCounts);
+    }
+
+    // Returns the total times of calls without nodes by method names, see RecordingLimits.OverflowPolicy#COLLAPSE
+    public Map<String, Long> getCollapsedTimes() {
+        return collapsedByName(collapsedTimes);
+    }
+
+    private Map<String, Long> collapsedByName(long[] values) {
+        Map<String, Long> result = new HashMap<>();
+        long[] counts = collapsedCounts;
+        if (counts != null) {
+            for (int id = 0; id < Math.min(counts.length, values.length); id++) {
+                if (counts[id] != 0) {
+                    result.put(SymbolTable.name(id), values[id]);
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public void forEach(Consumer<? super Node> action) {
         iterator().forEachRemaining(action);
     }
 
+    // Returns the generation of trees incremented by clear(), the trees of previous generations are forgotten
+    static int currentGeneration() {
+        return generation.get();
+    }
+
     // clean all information about trees
     public static void clear() {
-        trees.clear();
+        generation.incrementAndGet();
+        liveTrees.clear();
+        completedTrees.clear();
     }
 
     /**
-     * Returns the list of all CallTree created by {@link CallTree#getInstance()}.
+     * Returns the list of all CallTree created by {@link CallTree#getInstance()}: the trees of running threads
+     * followed by the completed ones. The trees of {@link Storage#EVENTS} storage contain all calls recorded before
+     * this call.
      *
      * @return the list of all CallTree created by {@link CallTree#getInstance()}.
      */
     public static List<CallTree> getTrees() {
-        return new ArrayList<>(trees.values());
+        collectCompletedTrees();
+        List<CallTree> result = new ArrayList<>();
+        for (LiveTree liveTree : liveTrees) {
+            result.add(liveTree.tree);
+        }
+        result.addAll(completedTrees);
+        for (CallTree tree : result) {
+            tree.flush();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the snapshots of all trees returned by {@link CallTree#getTrees()}.
+     *
+     * @see CallTree#snapshot()
+     */
+    public static List<CallTree> snapshotTrees() {
+        List<CallTree> result = new ArrayList<>();
+        for (CallTree tree : getTrees()) {
+            result.add(tree.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Returns and forgets the trees of terminated threads, so they are not kept in memory by this class anymore.
+     *
+     * @return the list of CallTree of the threads terminated since the previous call
+     */
+    public static List<CallTree> drainCompletedTrees() {
+        collectCompletedTrees();
+        List<CallTree> result = new ArrayList<>();
+        for (CallTree tree; (tree = completedTrees.poll()) != null; ) {
+            tree.flush();
+            result.add(tree);
+        }
+        return result;
+    }
+
+    // Builds the nodes of calls recorded but not added to the tree yet, returns the amount of applied events
+    int flush() {
+        return 0;
+    }
+
+    // Moves the trees of terminated threads from the live ones to the completed ones. The tree is removed by the
+    // iterator in constant time, the flag keeps the concurrent callers from moving it twice.
+    private static void collectCompletedTrees() {
+        for (Iterator<LiveTree> iterator = liveTrees.iterator(); iterator.hasNext(); ) {
+            LiveTree liveTree = iterator.next();
+            Thread thread = liveTree.thread.get();
+            if ((thread == null || !thread.isAlive()) && liveTree.completed.compareAndSet(false, true)) {
+                iterator.remove();
+                completedTrees.add(liveTree.tree);
+            }
+        }
+    }
+
+    // The tree of running thread, the thread is referenced weakly, so it isn't kept after termination
+    private static class LiveTree {
+        private final CallTree tree;
+        private final WeakReference<Thread> thread;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        LiveTree(CallTree tree, Thread thread) {
+            this.tree = tree;
+            this.thread = new WeakReference<>(thread);
+        }
     }
 
     /**
      * During the first call of this method in this thread creates the instance of CallTree and returns it. For every
-     * next call of this method returns the previously created CallTree object.
+     * next call of this method returns the previously created CallTree object. The tree is kept in the thread local
+     * variable, so the next calls don't allocate anything. When the thread terminates its tree is moved to the
+     * completed ones (see {@link CallTree#drainCompletedTrees()}).
      *
      * @return the appropriate to current thread object of CallTree
      */
     public static CallTree getInstance() {
-        trees.putIfAbsent(Thread.currentThread(), new CallTree(Thread.currentThread().getName() + " " + Thread.currentThread().getId()));
-        return trees.get(Thread.currentThread());
+        CallTree tree = currentTree.get();
+        if (tree == null || tree.treeGeneration != generation.get()) {
+            tree = register(Thread.currentThread());
+        }
+        return tree;
     }
 
-    // Returns parsed CallTree from given file
-    public static CallTree readFromFile(String pathname) throws IOException, FileParseException {
-        return readFromStream(new FileInputStream(pathname));
+    // Replaces the tree of the current thread by the given tree, which isn't registered, so it isn't returned by
+    // getTrees(). Returns the replaced tree, which is restored by the next call.
+    static CallTree replaceInstance(CallTree tree) {
+        CallTree replaced = currentTree.get();
+        if (tree != null && tree.treeGeneration == -1) {
+            tree.treeGeneration = generation.get();
+        }
+        currentTree.set(tree);
+        return replaced;
     }
-    // Returns parsed CallTree from given file
-    public static CallTree readFromStream(InputStream stream) throws IOException, FileParseException {
-        CallTree tree = new CallTree(recursiveRead(new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)), null));
-        tree.last = initNext(tree.root, null);
+
+    private static CallTree register(Thread thread) {
+        int treeGeneration = generation.get();
+        CallTree tree = newInstance(thread, treeGeneration);
+        tree.treeGeneration = treeGeneration;
+        currentTree.set(tree);
+        liveTrees.add(new LiveTree(tree, thread));
         return tree;
     }
 
-    private static Node initNext(Node root, Node last) {
-        if (last != null) {
-            last.next = root;
+    private static CallTree newInstance(Thread thread, int treeGeneration) {
+        String name = thread.getName() + " " + thread.getId();
+        CallTree tree;
+        switch (defaultStorage) {
+            case ARENA:
+                tree = new ArenaCallTree(name);
+                break;
+            case EVENTS:
+                tree = new EventLogCallTree(name, thread, treeGeneration);
+                break;
+            default:
+                tree = new CallTree(name, DEFAULT_SHIFT, defaultRecordingMode);
         }
-        last = root;
-        for (Node child : root.children) {
-            last = initNext(child, last);
+        tree.setSampling(defaultSampling);
+        tree.setLimits(defaultLimits);
+        if (defaultLatencyHistograms) {
+            tree.setLatencyHistograms(true);
         }
-        return last;
+        return tree;
     }
 
-    // the helper function for parsing tree from file.
-    private static Node recursiveRead(BufferedReader reader, String expectedTitle) throws IOException, FileParseException {
-        String header = reader.readLine();
-        int startIndexOfTitleFunctionBlock = header.indexOf("[");
-        int endIndexOfTitleFunctionBlock = header.indexOf("]:");
-        String headerWithoutParenthethis = header
-                .substring(startIndexOfTitleFunctionBlock + 1, endIndexOfTitleFunctionBlock);
-
-        if (expectedTitle != null && !headerWithoutParenthethis.startsWith(expectedTitle)) {
-            throw new FileParseException("The given file is corrupted. Title expected ["
-                    + expectedTitle + "], but was found [" + headerWithoutParenthethis + "]");
+    // Returns parsed CallTree from given file
+    public static CallTree readFromFile(String pathname) throws IOException, FileParseException {
+        try (InputStream stream = new FileInputStream(pathname)) {
+            return readFromStream(stream);
         }
+    }
 
-        Pair<Node, Integer> parsedNodeAndHash = parseNode(headerWithoutParenthethis);
-        Node node = parsedNodeAndHash.getKey();
-        List<String> nestedCalledMethodsList = methodsCallFromNodeParser(header.substring(endIndexOfTitleFunctionBlock + 2));
+    /**
+     * Returns read-only CallTree backed by the memory mapped file stored in {@link Format#BINARY_INDEXED} format. The
+     * nodes are decoded only when they are visited, so the file may be bigger than the heap.
+     *
+     * @param pathname the file with stored tree
+     * @return read-only view of the stored tree
+     */
+    public static CallTree mapFile(String pathname) throws IOException, FileParseException {
+        return MappedCallTree.map(pathname);
+    }
 
-        for (String s : nestedCalledMethodsList) {
-            node.addChild(recursiveRead(reader, s));
+    /**
+     * Returns the tree stored in the given file: the binary file stored with the index is mapped by
+     * {@link #mapFile(String)}, the other ones are read by {@link #readFromFile(String)}.
+     */
+    public static CallTree openFile(String pathname) throws IOException, FileParseException {
+        boolean indexed;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(pathname))) {
+            indexed = BinaryTreeFormat.isIndexed(stream);
         }
-        if (node.hashCode() != parsedNodeAndHash.getValue()) {
-            throw new FileParseException("An error ocurred while parsing tree, Hashcodes are not equal.");
+        return indexed ? mapFile(pathname) : readFromFile(pathname);
+    }
+
+    // Returns parsed CallTree from given stream, the format (text or binary) is detected by the stream header
+    public static CallTree readFromStream(InputStream stream) throws IOException, FileParseException {
+        BufferedInputStream bufferedStream = new BufferedInputStream(stream);
+        if (BinaryTreeFormat.isBinary(bufferedStream)) {
+            return BinaryTreeFormat.read(bufferedStream);
+        }
+        return TextTreeFormat.read(new InputStreamReader(bufferedStream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns all trees written one after another to the given stream in the same format, e.g. by
+     * {@link RollingDumpWriter}.
+     */
+    public static List<CallTree> readAllFromStream(InputStream stream) throws IOException, FileParseException {
+        BufferedInputStream bufferedStream = new BufferedInputStream(stream);
+        if (BinaryTreeFormat.isBinary(bufferedStream)) {
+            return BinaryTreeFormat.readAll(bufferedStream);
         }
-        return node;
+        return TextTreeFormat.readAll(new InputStreamReader(bufferedStream, StandardCharsets.UTF_8));
     }
 
     @Override
@@ -185,12 +511,54 @@ public class CallTree implements Iterable<CallTree.Node> {
      * @see Files#createFile(Path, FileAttribute[])
      */
     public void storeInFile(String name) throws IOException {
+        storeInFile(name, Format.TEXT);
+    }
+
+    /**
+     * Tries to store this tree in the given file using the given format. Both formats can be read back by
+     * {@link CallTree#readFromFile(String)}.
+     *
+     * @see CallTree#storeInFile(String)
+     */
+    public void storeInFile(String name, Format format) throws IOException {
         createDirectoriesAndFile(name);
-        try (PrintWriter writer = new PrintWriter(new File(name))) {
-            writer.println(toString());
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(name))) {
+            writeTo(stream, format);
+        }
+    }
+
+    /**
+     * Writes this tree to the given stream using the given format. The stream is flushed, but not closed. The text
+     * is written by small chunks, so the whole text of the tree is never kept in memory.
+     */
+    public void writeTo(OutputStream stream, Format format) throws IOException {
+        switch (format) {
+            case BINARY:
+                BinaryTreeFormat.write(this, stream, false);
+                break;
+            case BINARY_INDEXED:
+                BinaryTreeFormat.write(this, stream, true);
+                break;
+            default:
+                Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+                root.print(new StringBuilder(Node.PRINT_CHUNK), 0, writer);
+                TextTreeFormat.writeLimits(this, writer);
+                writer.write(System.lineSeparator());
+                writer.flush();
         }
     }
 
+    /**
+     * Formats of the stored tree.
+     * {@code TEXT} is the human-readable output of {@link CallTree#toString()}, {@code BINARY} is the compact one
+     * with deduplicated method names and varint encoded times. {@code BINARY_INDEXED} is {@code BINARY} followed by
+     * the indices of nodes and methods, which are needed by {@link CallTree#mapFile(String)} and make
+     * {@link TreeQuery} fast, but take more space than the tree itself.
+     */
+    public enum Format {
+        TEXT, BINARY, BINARY_INDEXED
+    }
+
 
     /**
      * Registers method call to this CallTree
@@ -198,24 +566,421 @@ public class CallTree implements Iterable<CallTree.Node> {
      * @param methodName name of called method
      */
     public void addMethodCall(String methodName, Object... args) {
+        addMethodCall(SymbolTable.intern(methodName), args);
+    }
+
+    /**
+     * Registers method call to this CallTree
+     *
+     * @param methodId id of the name of called method in {@link SymbolTable}
+     */
+    public void addMethodCall(int methodId, Object... args) {
+        addCapturedMethodCall(methodId, joinArguments(args));
+    }
+
+    /**
+     * Registers method call to this CallTree with already captured arguments. The arguments are converted to the
+     * string once, when the name of the node is needed first, so the object with lazy {@code toString()} may be given.
+     * The call isn't recorded if it isn't sampled (see {@link CallTree#isNextCallSampled()}).
+     *
+     * @param methodId  id of the name of called method in {@link SymbolTable}
+     * @param arguments the captured arguments of the call, null if the arguments are not recorded
+     */
+    public void addCapturedMethodCall(int methodId, Object arguments) {
+        if (skipDepth == 0 && (recordDepth != 0 || sampleRootCall())) {
+            if (overflowDepth != 0 || exceedsLimits(methodId)) {
+                addOverflowCall(methodId, sampleWeight);
+            } else {
+                recordCall(methodId, arguments, sampleWeight);
+                recordedNodes++;
+            }
+            recordDepth++;
+        } else {
+            skipDepth++;
+        }
+    }
+
+    /**
+     * Returns whether the next call registered by {@link CallTree#addCapturedMethodCall(int, Object)} will be
+     * recorded, so the arguments of the skipped calls don't need to be captured.
+     */
+    public boolean isNextCallSampled() {
+        return skipDepth == 0 && overflowDepth == 0 && (recordDepth != 0 || countdown <= 1);
+    }
+
+    // Decides whether the root-level call is recorded. The adaptive interval is adjusted only at the recorded calls,
+    // so the skipped ones don't even read the clock.
+    private boolean sampleRootCall() {
+        if (--countdown > 0) {
+            return false;
+        }
+        if (sampling.isAdaptive()) {
+            adjustSamplingInterval();
+        }
+        countdown = samplingInterval;
+        sampleWeight = samplingInterval;
+        return true;
+    }
+
+    // The interval grows in proportion to the excess of the nodes rate over the budget and halves when the rate is
+    // less than a half of the budget.
+    private void adjustSamplingInterval() {
+        long now = sampling.clock.getAsLong();
+        if (windowStart == 0) {
+            windowStart = now;
+            windowRecordedNodes = recordedNodes;
+            return;
+        }
+        long elapsed = now - windowStart;
+        if (elapsed < SAMPLING_WINDOW) {
+            return;
+        }
+        double rate = (recordedNodes - windowRecordedNodes) * 1e9 / elapsed;
+        if (rate > sampling.maxNodesPerSecond) {
+            samplingInterval = (int) Math.min(Sampling.MAX_INTERVAL,
+                    Math.ceil(samplingInterval * rate / sampling.maxNodesPerSecond));
+        } else if (rate < sampling.maxNodesPerSecond / 2) {
+            samplingInterval = Math.max(1, samplingInterval / 2);
+        }
+        windowStart = now;
+        windowRecordedNodes = recordedNodes;
+    }
+
+    // Checks whether the node of the call would exceed the limits, the oldest calls are evicted to free the room for
+    // it if the policy allows. The limits are not checked at all while they are not set.
+    private boolean exceedsLimits(int methodId) {
+        if (limits == RecordingLimits.NONE || recordingMode == RecordingMode.HISTOGRAMS) {
+            return false;
+        }
+        if (recordDepth >= limits.maxDepth) {
+            return true;
+        }
+        if (nodeCount() < limits.maxNodes || !addsNode(methodId)) {
+            return false;
+        }
+        return limits.policy != RecordingLimits.OverflowPolicy.EVICT_OLDEST || !evictOldest();
+    }
+
+    // Returns the amount of nodes except the root
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    // Returns whether the call would create the new node, in CALLING_CONTEXTS mode the known paths reuse their nodes
+    private boolean addsNode(int methodId) {
+        return recordingMode != RecordingMode.CALLING_CONTEXTS
+                || ((ContextNode) currentTreeStackTrace.peek()).getChildById(methodId) == null;
+    }
+
+    /**
+     * Removes the oldest finished call with its subtree. The first child of the root is taken if it is finished,
+     * otherwise the first child of that unfinished call and so on. The removed subtree is the continuous part of the
+     * {@code next} chain right after its parent, so the parent is linked to the following sibling or becomes the
+     * last node if there is no sibling, that is when the subtree is the end of the chain.
+     *
+     * @return false if there is no finished call to evict or the tree doesn't support eviction
+     */
+    boolean evictOldest() {
+        if (recordingMode != RecordingMode.CALLS) {
+            return false;
+        }
+        Node parent = root;
+        while (parent.children.size() != 0) {
+            Node oldest = parent.children.get(0);
+            if (oldest.endCallTime == -1) {
+                parent = oldest;
+                continue;
+            }
+            ((RingList<Node>) parent.children).removeFirst();
+            Node following = parent.children.size() != 0 ? parent.children.get(0) : null;
+            int evicted = 0;
+            for (Node node = oldest; node != following && node != null; node = node.next) {
+                evicted++;
+            }
+            parent.next = following;
+            if (following == null) {
+                last = parent;
+                PUBLISHED.lazySet(this, parent);
+            }
+            nodeCount -= evicted;
+            droppedNodes += evicted;
+            for (int i = parent.depth; i >= 0 && currentTreeStackTrace.get(i).hashValid; i--) {
+                currentTreeStackTrace.get(i).hashValid = false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Starts the call without the node, its nested calls are handled in the same way
+    private void addOverflowCall(int methodId, int weight) {
+        if (overflowDepth++ == 0) {
+            collapsing = limits.policy == RecordingLimits.OverflowPolicy.COLLAPSE;
+        }
+        droppedNodes++;
+        if (collapsing) {
+            pushOpenCall(methodId, weight, System.nanoTime());
+        }
+    }
+
+    private void finishOverflowCall() {
+        overflowDepth--;
+        if (!collapsing) {
+            return;
+        }
+        openCount--;
+        int methodId = openIds[openCount];
+        long duration = System.nanoTime() - openStarts[openCount];
+        int weight = openWeights[openCount];
+        addCollapsedCalls(methodId, weight, duration * weight);
+        recordCollapsedLatency(methodId, duration, weight);
+    }
+
+    // Adds the calls of the method without nodes, they are also added by the readers of stored trees
+    void addCollapsedCalls(int methodId, long count, long time) {
+        if (collapsedCounts == null) {
+            collapsedCounts = new long[Math.max(methodId + 1, SymbolTable.size())];
+            collapsedTimes = new long[collapsedCounts.length];
+        }
+        if (methodId >= collapsedCounts.length) {
+            int capacity = Math.max(methodId + 1, collapsedCounts.length * 2);
+            collapsedCounts = Arrays.copyOf(collapsedCounts, capacity);
+            collapsedTimes = Arrays.copyOf(collapsedTimes, capacity);
+        }
+        collapsedCounts[methodId] += count;
+        collapsedTimes[methodId] += time;
+    }
+
+    Node root() {
+        return root;
+    }
+
+    void addDroppedNodes(long count) {
+        droppedNodes += count;
+    }
+
+    // Returns the amounts of calls without nodes by method ids, null if there are no such calls. The array is
+    // replaced when it grows, so it is read with collapsedTimes() up to the shorter length.
+    long[] collapsedCounts() {
+        return collapsedCounts;
+    }
+
+    long[] collapsedTimes() {
+        return collapsedTimes;
+    }
+
+    // Records the latency of the call without the node, the trees recording calls to the event log pass it to the
+    // consumer thread, which owns the histograms
+    void recordCollapsedLatency(int methodId, long duration, int weight) {
+        recordLatency(methodId, duration, weight);
+    }
+
+    private void allocateOpenCalls() {
+        openIds = new int[16];
+        openWeights = new int[16];
+        openStarts = new long[16];
+    }
+
+    private void pushOpenCall(int methodId, int weight, long startCallTime) {
+        if (openIds == null) {
+            allocateOpenCalls();
+        }
+        if (openCount == openIds.length) {
+            openIds = Arrays.copyOf(openIds, openCount * 2);
+            openWeights = Arrays.copyOf(openWeights, openCount * 2);
+            openStarts = Arrays.copyOf(openStarts, openCount * 2);
+        }
+        openIds[openCount] = methodId;
+        openWeights[openCount] = weight;
+        openStarts[openCount++] = startCallTime;
+    }
+
+    // Records the sampled call, the weight is the amount of root-level calls represented by its subtree
+    void recordCall(int methodId, Object arguments, int weight) {
+        appendCall(methodId, arguments, weight, System.nanoTime());
+    }
+
+    // Adds the call started at the given time, the trees recording calls to the event log append them later in the
+    // consumer thread
+    void appendCall(int methodId, Object arguments, int weight, long startCallTime) {
+        if (recordingMode == RecordingMode.CALLING_CONTEXTS) {
+            addContextCall(methodId, weight, startCallTime);
+            return;
+        }
+        if (recordingMode == RecordingMode.HISTOGRAMS) {
+            pushOpenCall(methodId, weight, startCallTime);
+            return;
+        }
         Node currentState = currentTreeStackTrace.peek();
-        currentTreeStackTrace.push(currentState.addChild(
-                methodName + "{" + String.join(",", Arrays.stream(args).map(Object::toString).toArray(String[]::new)) + "}",
-                System.nanoTime()
-                )
+        invalidateStackTraceHashes();
+        Node node = currentState.addChild(
+                methodId,
+                arguments,
+                startCallTime
         );
-        last.next = currentTreeStackTrace.peek();
-        last = last.next;
+        node.weight = weight;
+        nodeCount++;
+        currentTreeStackTrace.push(node);
+        last.next = node;
+        last = node;
+        PUBLISHED.lazySet(this, node);
+    }
+
+    /**
+     * Returns the string values of the given arguments separated by commas, the form of arguments in node names.
+     */
+    public static String joinArguments(Object[] args) {
+        if (args.length == 0) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i != 0) {
+                result.append(',');
+            }
+            result.append(args[i]);
+        }
+        return result.toString();
+    }
+
+    // Reuses the child of the current node with the same name, the new node is created only for the new path.
+    private void addContextCall(int methodId, int weight, long startCallTime) {
+        ContextNode currentState = (ContextNode) currentTreeStackTrace.peek();
+        ContextNode child = currentState.getChildById(methodId);
+        if (child == null) {
+            invalidateStackTraceHashes();
+            child = currentState.addChild(new ContextNode(methodId, ((Node) currentState).shift.length(), startCallTime,
+                    weight));
+            nodeCount++;
+            last.next = child;
+            last = child;
+            PUBLISHED.lazySet(this, child);
+        } else {
+            child.enter(startCallTime, weight);
+        }
+        currentTreeStackTrace.push(child);
+    }
+
+    // The new child changes the hashes of all nodes on the stack trace. If some node has already outdated hash,
+    // then all its ancestors have outdated hashes too, so the walk stops there.
+    private void invalidateStackTraceHashes() {
+        for (int i = currentTreeStackTrace.size() - 1; i >= 0 && currentTreeStackTrace.get(i).hashValid; i--) {
+            currentTreeStackTrace.get(i).hashValid = false;
+        }
     }
 
     /**
      * Registers the finish of the last unfinished called method.
      */
     public void finishMethodCall() {
+        finishMethodCall(false);
+    }
+
+    /**
+     * Registers the finish of the last unfinished called method.
+     *
+     * @param exceptionally whether the method was finished by throwing the exception
+     */
+    public void finishMethodCall(boolean exceptionally) {
+        if (skipDepth > 0) {
+            skipDepth--;
+            return;
+        }
+        if (overflowDepth > 0) {
+            finishOverflowCall();
+        } else {
+            recordFinish(exceptionally);
+        }
+        recordDepth--;
+    }
+
+    // Records the finish of the last recorded call
+    void recordFinish(boolean exceptionally) {
+        appendFinish(exceptionally, System.nanoTime());
+    }
+
+    // Finishes the last added call at the given time
+    void appendFinish(boolean exceptionally, long endCallTime) {
+        if (recordingMode == RecordingMode.HISTOGRAMS) {
+            if (openCount == 0) {
+                throw new IllegalStateException("Trying to finish last registered method, but hadn't added it before");
+            }
+            openCount--;
+            recordLatency(openIds[openCount], endCallTime - openStarts[openCount], openWeights[openCount]);
+            return;
+        }
         if (currentTreeStackTrace.size() == 1) {
             throw new IllegalStateException("Trying to finish last registered method, but hadn't added it before");
         }
-        currentTreeStackTrace.pop().setEndCallTime(System.nanoTime());
+        Node node = currentTreeStackTrace.pop();
+        node.setEndCallTime(endCallTime);
+        if (exceptionally) {
+            node.exceptional = true;
+        }
+        PUBLISHED.lazySet(this, last);
+        if (histograms != null) {
+            if (node instanceof ContextNode) {
+                ContextNode contextNode = (ContextNode) node;
+                recordLatency(node.functionId, endCallTime - contextNode.lastStartCallTime, contextNode.lastWeight);
+            } else {
+                recordLatency(node.functionId, endCallTime - node.startCallTime, node.weight);
+            }
+        }
+    }
+
+    /**
+     * Sets whether the durations of calls finished after this call are recorded in latency histograms of methods.
+     * The already recorded histograms are kept while the recording is enabled. The histograms take a fixed amount of
+     * memory for every method, so in {@link RecordingMode#HISTOGRAMS} mode the memory doesn't grow with calls.
+     */
+    public void setLatencyHistograms(boolean enabled) {
+        if (!enabled && recordingMode == RecordingMode.HISTOGRAMS) {
+            throw new IllegalStateException("Histograms can't be disabled in HISTOGRAMS recording mode");
+        }
+        if (!enabled) {
+            histograms = null;
+        } else if (histograms == null) {
+            histograms = new LatencyHistogram[SymbolTable.size()];
+        }
+        publishedHistograms = histograms;
+    }
+
+    // Records the duration of the call scaled by its sampling weight, the allocation happens only for the first call
+    // of the method
+    void recordLatency(int methodId, long duration, int weight) {
+        if (histograms == null) {
+            return;
+        }
+        if (methodId >= histograms.length) {
+            histograms = Arrays.copyOf(histograms, Math.max(methodId + 1, histograms.length * 2));
+        }
+        LatencyHistogram histogram = histograms[methodId];
+        if (histogram == null) {
+            histogram = histograms[methodId] = new LatencyHistogram();
+        }
+        histogram.record(duration, weight);
+        PUBLISHED_HISTOGRAMS.lazySet(this, histograms);
+    }
+
+    /**
+     * Returns the copies of latency histograms of all methods finished in this tree by their names, the map is empty
+     * if the histograms are not recorded. It may be called by any thread while the calls are recorded: the copies
+     * contain all durations recorded before the last published one, the duration being recorded concurrently may be
+     * counted only partially, e.g. in its bucket but not in the total count yet.
+     *
+     * @see CallTree#setLatencyHistograms(boolean)
+     */
+    public Map<String, LatencyHistogram> getLatencyHistograms() {
+        Map<String, LatencyHistogram> result = new HashMap<>();
+        LatencyHistogram[] histograms = publishedHistograms;
+        if (histograms != null) {
+            for (int id = 0; id < histograms.length; id++) {
+                if (histograms[id] != null) {
+                    result.put(SymbolTable.name(id), histograms[id].copy());
+                }
+            }
+        }
+        return result;
     }
 
     @Override
@@ -223,64 +988,349 @@ public class CallTree implements Iterable<CallTree.Node> {
         return new NodeIterator(root);
     }
 
+    /**
+     * Returns the copy of this tree, which may be taken by any thread while the owning thread records calls. The
+     * owning thread isn't blocked: the copy contains the calls published by it before, the unfinished calls have
+     * the finish time -1. The copy isn't changed by the next calls.
+     * <p>
+     * The nodes are copied in order of the {@code next} links, which are never changed after publication, and the
+     * structure is restored by the depths of nodes, so the children lists being changed are not read. The only change
+     * of the links is the eviction of the oldest calls (see {@link RecordingLimits.OverflowPolicy#EVICT_OLDEST}), the
+     * evicted nodes keep their links, so the walk started before the eviction continues through them, unless the
+     * evicted subtree was the end of the chain. In that case the end of the chain is reached before the published node
+     * and the copy is started again.
+     */
+    public CallTree snapshot() {
+        while (true) {
+            CallTree copy = copyPublished();
+            if (copy != null) {
+                copyLimitsState(copy);
+                return copy;
+            }
+        }
+    }
+
+    // Returns null if the published node was evicted before it was reached
+    private CallTree copyPublished() {
+        Node end = published;
+        List<Node> path = new ArrayList<>();
+        Node copyLast = null;
+        for (Node node = root; ; node = node.next) {
+            if (node == null) {
+                return null;
+            }
+            Node copy = node.copy();
+            if (copyLast != null) {
+                while (path.size() > node.depth) {
+                    path.remove(path.size() - 1);
+                }
+                path.get(path.size() - 1).addChild(copy);
+                copyLast.next = copy;
+            }
+            path.add(copy);
+            copyLast = copy;
+            if (node == end) {
+                break;
+            }
+        }
+        return new CallTree(path.get(0), copyLast);
+    }
+
+    // Returns the cursor over the calls of this tree for the writer of dumps, only the calls are dumped incrementally
+    DumpCursor dumpCursor() {
+        return recordingMode == RecordingMode.CALLS ? new ChainCursor() : DumpCursor.snapshots(this);
+    }
+
+    // The cursor walking the next links from the node published at the previous call, like snapshot() does
+    private class ChainCursor extends DumpCursor.Incremental<Node> {
+        private Node last;
+
+        ChainCursor() {
+            super(CallTree.this);
+        }
+
+        @Override
+        List<Node> published() {
+            flush();
+            List<Node> nodes = new ArrayList<>();
+            while (true) {
+                Node end = published;
+                if (end == last) {
+                    return nodes;
+                }
+                if (walk(last == null ? root : last.next, end, Long.MIN_VALUE, nodes)
+                        // the walk reached the end of the evicted subtree, the new nodes are found by their starts
+                        || last != null && walk(root, end, last.startCallTime, nodes)) {
+                    last = end;
+                    return nodes;
+                }
+            }
+        }
+
+        // Adds the nodes started after the given time up to the end, returns false if the end wasn't reached
+        private boolean walk(Node from, Node end, long startedAfter, List<Node> nodes) {
+            nodes.clear();
+            for (Node node = from; node != null; node = node.next) {
+                if (node.startCallTime > startedAfter) {
+                    nodes.add(node);
+                }
+                if (node == end) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        int depth(Node node) {
+            return node.depth;
+        }
+
+        @Override
+        boolean isFinished(Node node) {
+            return node != root && node.endCallTime != -1;
+        }
+
+        @Override
+        Node copy(Node node) {
+            return node.copy();
+        }
+    }
+
+    // Copies the counters of limits to the snapshot of this tree, they are read without synchronization, so they may
+    // be a bit behind the nodes
+    void copyLimitsState(CallTree snapshot) {
+        snapshot.droppedNodes = droppedNodes;
+        long[] counts = collapsedCounts, times = collapsedTimes;
+        if (counts != null && times != null) {
+            snapshot.collapsedCounts = counts.clone();
+            snapshot.collapsedTimes = times.clone();
+        }
+    }
+
+    /**
+     * The ways of recording calls.
+     * {@code CALLS} creates the new node for every call. {@code CALLING_CONTEXTS} creates the node only for the first
+     * call of the method from the same path and accumulates the amount and the time of calls in it, so the tree size
+     * is bounded by the number of distinct paths. The arguments of calls are not recorded in this mode, the stored
+     * tree keeps the start of the first call and the finish of the last one for every node with the amount, the total,
+     * minimal and maximal time of its calls. {@code HISTOGRAMS}
+     * doesn't create nodes at all and records only the latency histograms of methods.
+     */
+    public enum RecordingMode {
+        CALLS, CALLING_CONTEXTS, HISTOGRAMS
+    }
+
+    /**
+     * The ways of storing calls of trees created by {@link CallTree#getInstance()}.
+     * {@code NODES} keeps every call as the {@link Node} object. {@code ARENA} keeps calls in primitive arrays taking
+     * a few dozen bytes per call and creates nodes only when the tree is visited, it supports only the {@code CALLS}
+     * recording mode. {@code EVENTS} writes calls to the ring buffer of the recording thread and builds the nodes in
+     * the background thread, so the recording thread only stores a few fields per call, it supports only the
+     * {@code CALLS} recording mode too.
+     */
+    public enum Storage {
+        NODES, ARENA, EVENTS
+    }
+
     static public class Node {
+        // Returns the name of called method with the arguments of the call in curly brackets
         public String getName() {
-            return name;
+            if (name != null) {
+                return name;
+            }
+            if (arguments == null) {
+                return getFunctionName();
+            }
+            if (!(arguments instanceof String)) {
+                arguments = arguments.toString();
+            }
+            return getFunctionName() + "{" + arguments + "}";
         }
 
         public String getFunctionName() {
-            int i = name.indexOf('{');
-            return i == -1 ? name : name.substring(0, i);
+            return SymbolTable.name(functionId);
+        }
+
+        // Returns the id of the function name in SymbolTable
+        public int getFunctionId() {
+            return functionId;
         }
 
+        private final int functionId;
+        // the captured arguments of recorded call, null if the node has no arguments or it was created with the whole
+        // name. It is converted to the string and replaced by it when the name is needed first, so the name and the
+        // cached hash don't change even if the captured objects are changed after that.
+        private Object arguments;
+        // the whole name given to the constructor, null for recorded calls, their names are built on demand
         private final String name;
         private final List<Node> children;
+        private static final String VIEW_SHIFT = shiftString(DEFAULT_SHIFT);
+        static final int PRINT_CHUNK = 1 << 13;
         private String shift;
-        private Node next = null;
+        Node next = null;
+        boolean exceptional = false;
+        // the amount of root-level calls represented by the subtree of this node, see Sampling
+        int weight = 1;
+        // the number of ancestors, it is set when the node is added to the parent and never changed after that
+        int depth;
+        // cached hash of the subtree, it is invalidated when a child is added to this node or to any descendant
+        private int hash;
+        boolean hashValid = false;
 
         public void setEndCallTime(long endCallTime) {
             this.endCallTime = endCallTime;
         }
 
+        // Returns true if the call was finished by throwing the exception, for merged calls if any of them was
+        public boolean isExceptional() {
+            return exceptional;
+        }
+
         private long startCallTime, endCallTime;
 
+        public long getStartCallTime() {
+            return startCallTime;
+        }
+
+        public long getEndCallTime() {
+            return endCallTime;
+        }
+
         public List<Node> getChildren() {
-            return Collections.unmodifiableList(children);
+            return Collections.unmodifiableList(children());
+        }
+
+        // Returns the amount of children, unlike getChildren() it doesn't allocate
+        public int getChildCount() {
+            return children().size();
+        }
+
+        public Node getChild(int index) {
+            return children().get(index);
+        }
+
+        // The children of this node without the unmodifiable wrapper, the lazy nodes override it.
+        List<Node> children() {
+            return children;
         }
 
         public Node(String name, int shift, long startCallTime) {
             this(name, shift, startCallTime, -1);
         }
         public Node(String name, int shift, long startCallTime, long endCallTime) {
+            this(SymbolTable.intern(functionName(name)), name, shift, startCallTime, endCallTime);
+        }
+
+        // The same with the already known id of the method name, the parsers look it up once per distinct name
+        Node(int functionId, String name, int shift, long startCallTime, long endCallTime) {
             if (shift < 0) {
                 throw new IllegalArgumentException("Shift should be non-negative");
             }
 
             this.name = name;
-            children = new ArrayList<>();
+            this.functionId = functionId;
+            this.arguments = null;
+            children = new RingList<>();
+            this.shift = shiftString(shift);
+            this.startCallTime = startCallTime;
+            this.endCallTime = endCallTime;
+        }
+
+        // Constructor for recorded calls, the name isn't built until it is needed
+        Node(int functionId, Object arguments, int shift, long startCallTime) {
+            if (shift < 0) {
+                throw new IllegalArgumentException("Shift should be non-negative");
+            }
+            this.name = null;
+            this.functionId = functionId;
+            this.arguments = arguments;
+            children = new RingList<>();
+            this.shift = shiftString(shift);
+            this.startCallTime = startCallTime;
+            this.endCallTime = -1;
+        }
+
+        // Returns the method name without the arguments
+        static String functionName(String name) {
+            int i = name.indexOf('{');
+            return i == -1 ? name : name.substring(0, i);
+        }
 
+        private static String shiftString(int shift) {
             StringBuilder d = new StringBuilder();
             d.append("|");
             while (--shift > 0) {
                 d.append(" ");
             }
-            this.shift = d.toString();
+            return d.toString();
+        }
+
+        // Constructor for the read-only views of nodes stored outside of the heap objects, the views have no own
+        // children list and provide the children by overriding children()
+        Node(String name, long startCallTime, long endCallTime) {
+            this(SymbolTable.intern(functionName(name)), name, startCallTime, endCallTime);
+        }
+
+        // The same with the already known id of the method name
+        Node(int functionId, String name, long startCallTime, long endCallTime) {
+            this.name = name;
+            this.functionId = functionId;
+            this.arguments = null;
+            this.children = Collections.emptyList();
+            this.shift = VIEW_SHIFT;
             this.startCallTime = startCallTime;
             this.endCallTime = endCallTime;
         }
 
-        private Node addChild(String name, long startCallTime) {
-            return addChild(new Node(name, shift.length(), startCallTime));
+        // The same for the views of recorded calls
+        Node(int functionId, Object arguments, long startCallTime, long endCallTime) {
+            this.name = null;
+            this.functionId = functionId;
+            this.arguments = arguments;
+            this.children = Collections.emptyList();
+            this.shift = VIEW_SHIFT;
+            this.startCallTime = startCallTime;
+            this.endCallTime = endCallTime;
         }
 
-        private Node addChild(Node newChild) {
+        private Node addChild(int functionId, Object arguments, long startCallTime) {
+            return addChild(new Node(functionId, arguments, shift.length(), startCallTime));
+        }
+
+        // Invalidates the cached hash of this node only, the ancestors should be invalidated by the caller.
+        Node addChild(Node newChild) {
+            newChild.depth = depth + 1;
             children.add(newChild);
+            hashValid = false;
             return newChild;
         }
 
         @Override
         public int hashCode() {
-            return (name.hashCode() * 1367) ^ children.hashCode();
+            if (!hashValid) {
+                updateHashes(this);
+            }
+            return hash;
+        }
+
+        // Recomputes the outdated hashes in the subtree of the given node. The nodes with outdated hashes are
+        // collected level by level and then processed in reverse order, so children are always processed first.
+        private static void updateHashes(Node root) {
+            List<Node> outdated = new ArrayList<>();
+            outdated.add(root);
+            for (int i = 0; i < outdated.size(); i++) {
+                for (Node child : outdated.get(i).children()) {
+                    if (!child.hashValid) {
+                        outdated.add(child);
+                    }
+                }
+            }
+            for (int i = outdated.size() - 1; i >= 0; i--) {
+                Node node = outdated.get(i);
+                node.hash = (node.getName().hashCode() * 1367) ^ node.children().hashCode();
+                node.hashValid = true;
+            }
         }
 
         @Override
@@ -289,26 +1339,77 @@ public class CallTree implements Iterable<CallTree.Node> {
         }
 
         private StringBuilder print(StringBuilder result, int depth) {
+            try {
+                return print(result, depth, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Prints the subtree in pre-order. The stack of children iterators is used instead of recursion, so the depth
+        // of the tree is not limited by the thread stack size. If the writer is given, the printed lines are moved
+        // to it every PRINT_CHUNK chars.
+        private StringBuilder print(StringBuilder result, int depth, Writer out) throws IOException {
+            printLine(result, depth);
+            Deque<Iterator<Node>> path = new ArrayDeque<>();
+            path.push(children().iterator());
+            while (!path.isEmpty()) {
+                Iterator<Node> iterator = path.peek();
+                if (!iterator.hasNext()) {
+                    path.pop();
+                    continue;
+                }
+                Node child = iterator.next();
+                child.printLine(result, depth + path.size());
+                path.push(child.children().iterator());
+                if (out != null && result.length() >= PRINT_CHUNK) {
+                    out.append(result);
+                    result.setLength(0);
+                }
+            }
+            if (out != null) {
+                out.append(result);
+                result.setLength(0);
+            }
+            return result;
+        }
+
+        private void printLine(StringBuilder result, int depth) {
             for (int i = 0; i < depth; i++) {
                 result.append(shift);
             }
             result.append("[")
-                    .append(String.format("%s, ", name))
-                    .append(String.format("%d, ", hashCode()))
-                    .append(String.format("%d#%d", startCallTime, endCallTime))
-                    .append("]: ");
+                    .append(getName()).append(", ")
+                    .append(hashCode()).append(", ")
+                    .append(startCallTime).append("#").append(endCallTime);
+            if (weight != 1) {
+                result.append("*").append(weight);
+            }
+            printCounters(result);
+            result.append(exceptional ? "!]: " : "]: ");
+            List<Node> children = children();
             for (int i = 0; i < children.size(); i++) {
                 Node child = children.get(i);
-                result.append("(").append(child.name).append(", ").append(child.hashCode()).append(")");
+                result.append("(").append(child.getName()).append(", ").append(child.hashCode()).append(")");
                 if (i + 1 != children.size()) {
                     result.append(", ");
                 }
             }
             result.append("\n");
-            for (Node child : children) {
-                child.print(result, depth + 1);
-            }
-            return result;
+        }
+
+        // Prints the counters of merged calls, the node of the single call has no counters
+        void printCounters(StringBuilder result) {
+        }
+
+        // The counters follow the weight: ~calls/estimated calls/total time/estimated time/minimal time/maximal time
+        final void appendCounters(StringBuilder result) {
+            result.append('~').append(getCallCount())
+                    .append('/').append(getEstimatedCallCount())
+                    .append('/').append(executionTime())
+                    .append('/').append(getEstimatedExecutionTime())
+                    .append('/').append(getMinExecutionTime())
+                    .append('/').append(getMaxExecutionTime());
         }
 
         @Override
@@ -316,12 +1417,181 @@ public class CallTree implements Iterable<CallTree.Node> {
             if (obj == null || !(obj instanceof Node)) {
                 return false;
             }
-            return name.equals(((Node) obj).name) && children.equals(((Node) obj).children);
+            return getName().equals(((Node) obj).getName()) && children().equals(((Node) obj).children());
         }
 
         public long executionTime() {
             return endCallTime == -1 ? 0 : endCallTime - startCallTime;
         }
+
+        // Returns the amount of calls represented by this node
+        public int getCallCount() {
+            return 1;
+        }
+
+        // Returns the copy of this node without children
+        Node copy() {
+            Node copy = name != null
+                    ? new Node(name, shift.length(), startCallTime, endCallTime)
+                    : new Node(functionId, arguments, shift.length(), startCallTime);
+            copy.copyState(this);
+            return copy;
+        }
+
+        void copyState(Node node) {
+            endCallTime = node.endCallTime;
+            exceptional = node.exceptional;
+            weight = node.weight;
+        }
+
+        // Returns the sampling weight of this node, that is the amount of root-level calls represented by its subtree
+        public int getSampleWeight() {
+            return weight;
+        }
+
+        // Returns the amount of calls represented by this node scaled by the sampling weight
+        public long getEstimatedCallCount() {
+            return weight;
+        }
+
+        // Returns the execution time scaled by the sampling weight
+        public long getEstimatedExecutionTime() {
+            return executionTime() * weight;
+        }
+
+        public long getMinExecutionTime() {
+            return executionTime();
+        }
+
+        public long getMaxExecutionTime() {
+            return executionTime();
+        }
+    }
+
+    // The node of CallTree in CALLING_CONTEXTS mode, which accumulates all calls of the method from the same path.
+    static class ContextNode extends Node {
+        private Map<Integer, ContextNode> childrenById;
+        private int callCount = 1, lastWeight;
+        // the amount of calls and their total time scaled by the sampling weights of the calls
+        private long estimatedCallCount, estimatedTime;
+        private long lastStartCallTime, totalTime, minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+
+        ContextNode(String name, int shift, long startCallTime) {
+            super(name, shift, startCallTime);
+            lastStartCallTime = startCallTime;
+            lastWeight = 1;
+            estimatedCallCount = 1;
+        }
+
+        // Constructor for the nodes of stored trees, their counters are set by setCounters()
+        ContextNode(int functionId, String name, int shift, long startCallTime, long endCallTime) {
+            super(functionId, name, shift, startCallTime, endCallTime);
+            lastStartCallTime = startCallTime;
+            lastWeight = 1;
+        }
+
+        // the weight of the first call is kept as the weight of the node
+        ContextNode(int functionId, int shift, long startCallTime, int weight) {
+            super(functionId, (Object) null, shift, startCallTime);
+            lastStartCallTime = startCallTime;
+            this.weight = lastWeight = weight;
+            estimatedCallCount = weight;
+        }
+
+        ContextNode getChildById(int functionId) {
+            return childrenById == null ? null : childrenById.get(functionId);
+        }
+
+        ContextNode addChild(ContextNode child) {
+            if (childrenById == null) {
+                childrenById = new HashMap<>();
+            }
+            childrenById.put(child.getFunctionId(), child);
+            super.addChild(child);
+            return child;
+        }
+
+        @Override
+        Node copy() {
+            Node node = this;
+            ContextNode copy = node.name != null
+                    ? new ContextNode(node.name, node.shift.length(), node.startCallTime)
+                    : new ContextNode(node.functionId, node.shift.length(), node.startCallTime, weight);
+            copy.copyState(this);
+            copy.callCount = callCount;
+            copy.lastWeight = lastWeight;
+            copy.estimatedCallCount = estimatedCallCount;
+            copy.estimatedTime = estimatedTime;
+            copy.lastStartCallTime = lastStartCallTime;
+            copy.totalTime = totalTime;
+            copy.minTime = minTime;
+            copy.maxTime = maxTime;
+            return copy;
+        }
+
+        // Restores the counters of the stored node, the minimal and maximal times are 0 if no call was finished
+        void setCounters(int callCount, long estimatedCallCount, long totalTime, long estimatedTime, long minTime,
+                         long maxTime) {
+            this.callCount = callCount;
+            this.estimatedCallCount = estimatedCallCount;
+            this.totalTime = totalTime;
+            this.estimatedTime = estimatedTime;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+
+        @Override
+        void printCounters(StringBuilder result) {
+            appendCounters(result);
+        }
+
+        void enter(long startCallTime, int weight) {
+            callCount++;
+            estimatedCallCount += weight;
+            lastStartCallTime = startCallTime;
+            lastWeight = weight;
+        }
+
+        @Override
+        public void setEndCallTime(long endCallTime) {
+            long time = endCallTime - lastStartCallTime;
+            totalTime += time;
+            estimatedTime += time * lastWeight;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            super.setEndCallTime(endCallTime);
+        }
+
+        // Returns the total time of finished calls
+        @Override
+        public long executionTime() {
+            return totalTime;
+        }
+
+        @Override
+        public int getCallCount() {
+            return callCount;
+        }
+
+        @Override
+        public long getEstimatedCallCount() {
+            return estimatedCallCount;
+        }
+
+        @Override
+        public long getEstimatedExecutionTime() {
+            return estimatedTime;
+        }
+
+        @Override
+        public long getMinExecutionTime() {
+            return minTime == Long.MAX_VALUE ? 0 : minTime;
+        }
+
+        @Override
+        public long getMaxExecutionTime() {
+            return maxTime == Long.MIN_VALUE ? 0 : maxTime;
+        }
     }
 
 
@@ -0,0 +1,180 @@
+package org.jetbrains.test.calltree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Cursor over the calls of the tree recorded by another thread used by {@link RollingDumpWriter}. Every call of
+ * {@link #next()} returns the calls recorded since its previous call. It is used by one thread.
+ */
+abstract class DumpCursor {
+    /**
+     * Returns the tree of calls recorded since the previous call, null if there are no such calls.
+     */
+    abstract CallTree next();
+
+    /**
+     * Returns the cursor, which returns the whole snapshot of the tree every time. It is used for the trees of
+     * calling contexts and histograms, their size is bounded by the number of paths and methods.
+     */
+    static DumpCursor snapshots(CallTree tree) {
+        return new DumpCursor() {
+            @Override
+            CallTree next() {
+                return tree.snapshot();
+            }
+        };
+    }
+
+    /**
+     * The cursor, which returns the calls finished since its previous call. Every finished call is returned once
+     * with its finish time, its ancestors are returned with the finish time -1 as the path to it every time it has
+     * the returned descendants. Only the returned calls and the path to them are copied.
+     * <p>
+     * The calls finish in the reverse order of their starts, so the calls unfinished at the previous call are the
+     * path from the root, and the ancestors of all calls published since then are on this path. The nodes are read
+     * in pre-order: that path followed by the new nodes. The finish time of the call is read without
+     * synchronization, so the call may be seen unfinished while its parent is seen finished already; such call is
+     * kept with its ancestors and the ancestors returned already are not returned finished again.
+     * <p>
+     * The returned tree has the counters of limits changed since the previous call, so the sum of the dumps gives
+     * the counters of the tree. If only the counters changed, the returned tree is the root with the counters.
+     *
+     * @param <T> the reference to the node of the recorded tree
+     */
+    abstract static class Incremental<T> extends DumpCursor {
+        // the calls unfinished at the previous call with their ancestors in pre-order, the first one is the root
+        private List<T> open = new ArrayList<>();
+        // the positions in open of the calls returned finished already
+        private BitSet written = new BitSet();
+        private final CallTree tree;
+        // the counters of limits of the tree at the previous call
+        private long droppedNodes;
+        private long[] collapsedCounts = new long[0], collapsedTimes = new long[0];
+
+        Incremental(CallTree tree) {
+            this.tree = tree;
+        }
+
+        // Returns the nodes published since the previous call in pre-order, the first call returns the root too
+        abstract List<T> published();
+
+        abstract int depth(T node);
+
+        // Returns whether the call is finished, the root is never finished
+        abstract boolean isFinished(T node);
+
+        // Returns the detached copy of the node with its finish time
+        abstract CallTree.Node copy(T node);
+
+        @Override
+        CallTree next() {
+            List<T> fresh = published();
+            List<T> nextOpen = new ArrayList<>();
+            BitSet nextWritten = new BitSet();
+            // the path to the current node: the nodes, their copies or null, whether they were returned finished
+            // and whether they are kept in the next open calls
+            List<T> path = new ArrayList<>();
+            List<CallTree.Node> copies = new ArrayList<>();
+            BitSet pathWritten = new BitSet(), pathKept = new BitSet();
+            CallTree.Node rootCopy = null, lastCopy = null;
+            for (int i = 0; i < open.size() + fresh.size(); i++) {
+                boolean isOpen = i < open.size();
+                T node = isOpen ? open.get(i) : fresh.get(i - open.size());
+                int depth = depth(node);
+                while (path.size() > depth) {
+                    path.remove(path.size() - 1);
+                    copies.remove(copies.size() - 1);
+                }
+                path.add(node);
+                copies.add(null);
+                pathWritten.set(depth, isOpen && written.get(i));
+                pathKept.clear(depth);
+                if (!isFinished(node)) {
+                    for (int j = 0; j <= depth; j++) {
+                        if (!pathKept.get(j)) {
+                            pathKept.set(j);
+                            nextWritten.set(nextOpen.size(), pathWritten.get(j));
+                            nextOpen.add(path.get(j));
+                        }
+                    }
+                } else if (!pathWritten.get(depth)) {
+                    pathWritten.set(depth);
+                    for (int j = 0; j <= depth; j++) {
+                        if (copies.get(j) == null) {
+                            CallTree.Node copy = copy(path.get(j));
+                            if (j != depth) {
+                                // the path to the finished call, its own finish is returned once
+                                copy.setEndCallTime(-1);
+                                copy.exceptional = false;
+                            }
+                            if (j == 0) {
+                                rootCopy = copy;
+                            } else {
+                                copies.get(j - 1).addChild(copy);
+                                lastCopy.next = copy;
+                            }
+                            copies.set(j, copy);
+                            lastCopy = copy;
+                        }
+                    }
+                }
+            }
+            open = nextOpen;
+            written = nextWritten;
+            if (rootCopy == null) {
+                if (!limitsChanged()) {
+                    return null;
+                }
+                rootCopy = lastCopy = copy(open.get(0));
+                rootCopy.setEndCallTime(-1);
+                rootCopy.exceptional = false;
+            }
+            CallTree delta = new CallTree(rootCopy, lastCopy);
+            copyLimitsChange(delta);
+            return delta;
+        }
+
+        private boolean limitsChanged() {
+            if (tree.getDroppedNodes() != droppedNodes) {
+                return true;
+            }
+            long[] counts = tree.collapsedCounts(), times = tree.collapsedTimes();
+            if (counts != null && times != null) {
+                for (int id = 0; id < Math.min(counts.length, times.length); id++) {
+                    if (id >= collapsedCounts.length ? counts[id] != 0 || times[id] != 0
+                            : counts[id] != collapsedCounts[id] || times[id] != collapsedTimes[id]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Adds the changes of the counters of limits since the previous call to the delta
+        private void copyLimitsChange(CallTree delta) {
+            long dropped = tree.getDroppedNodes();
+            delta.addDroppedNodes(dropped - droppedNodes);
+            droppedNodes = dropped;
+            long[] counts = tree.collapsedCounts(), times = tree.collapsedTimes();
+            if (counts == null || times == null) {
+                return;
+            }
+            int length = Math.min(counts.length, times.length);
+            if (length > collapsedCounts.length) {
+                collapsedCounts = Arrays.copyOf(collapsedCounts, length);
+                collapsedTimes = Arrays.copyOf(collapsedTimes, length);
+            }
+            for (int id = 0; id < length; id++) {
+                long count = counts[id], time = times[id];
+                if (count != collapsedCounts[id] || time != collapsedTimes[id]) {
+                    delta.addCollapsedCalls(id, count - collapsedCounts[id], time - collapsedTimes[id]);
+                    collapsedCounts[id] = count;
+                    collapsedTimes[id] = time;
+                }
+            }
+        }
+    }
+}
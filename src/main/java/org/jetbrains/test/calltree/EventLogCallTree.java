@@ -0,0 +1,220 @@
+package org.jetbrains.test.calltree;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CallTree which doesn't build the nodes in the recording thread. Every recorded call and finish is written as the
+ * fixed-size event (the kind, the name id, the sampling weight, the time and the captured arguments) to the ring
+ * buffer owned by the recording thread, and the nodes are built from these events by the consumer thread shared by
+ * all such trees. The buffer has the single producer and the single consumer, the positions of both are published
+ * with release semantics, so neither side takes the lock. When the buffer is full, the recording thread wakes the
+ * consumer and waits for the free space without taking the lock of the tree, so it isn't blocked by the readers
+ * applying the events. The consumer thread stops when there are no trees to consume and is started again by the
+ * next tree.
+ * <p>
+ * The nodes are built by the same code as for the calls recorded directly with the times of the events, so the tree
+ * is the same. {@link CallTree#getTrees()} applies the pending events of every tree before returning it. Only the
+ * {@link RecordingMode#CALLS} mode is supported, the calls exceeding the limits are dropped instead of evicting.
+ */
+class EventLogCallTree extends CallTree {
+    private static final int CAPACITY = 1 << 12;
+    private static final int MASK = CAPACITY - 1;
+    private static final byte ENTER = 0, EXIT = 1, EXIT_EXCEPTIONALLY = 2, COLLAPSED_LATENCY = 3;
+    // the time the consumer sleeps after finding no events in all buffers
+    private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+    // the producer with the full buffer yields this many times and then sleeps between the checks of the buffer
+    private static final int FULL_SPINS = 100;
+    private static final long FULL_PARK = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final AtomicLongFieldUpdater<EventLogCallTree> HEAD =
+            AtomicLongFieldUpdater.newUpdater(EventLogCallTree.class, "head");
+    private static final AtomicLongFieldUpdater<EventLogCallTree> TAIL =
+            AtomicLongFieldUpdater.newUpdater(EventLogCallTree.class, "tail");
+
+    // the trees read by the consumer, the trees of terminated threads are removed after their last events and the
+    // trees forgotten by CallTree#clear() are removed at once, though their threads may still be running
+    private static final Queue<EventLogCallTree> consumedTrees = new ConcurrentLinkedQueue<>();
+    private static volatile Thread consumer;
+
+    private final byte[] kinds = new byte[CAPACITY];
+    private final int[] ids = new int[CAPACITY], weights = new int[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final Object[] arguments = new Object[CAPACITY];
+    // The position of the next event read by the consumer and the position of the next event written by the
+    // producer. The producer keeps the last head read by it and its own copy of the tail, so it never reads the
+    // volatile tail and reads the volatile head only when the buffer looks full.
+    private volatile long head, tail;
+    private long cachedHead, producerTail;
+    private final WeakReference<Thread> owner;
+    // the generation of trees of CallTree, in which this tree was registered
+    private final int generation;
+    // the amount of recorded calls and unfinished calls as seen by the producer
+    private int producedNodes, openCalls;
+
+    EventLogCallTree(String rootName, Thread owner, int generation) {
+        super(rootName);
+        this.owner = new WeakReference<>(owner);
+        this.generation = generation;
+        consumedTrees.add(this);
+        startConsumer();
+    }
+
+    private static synchronized void startConsumer() {
+        if (consumer == null) {
+            consumer = new Thread(EventLogCallTree::consume, "call tree event consumer");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+    }
+
+    private static void consume() {
+        while (true) {
+            int applied = 0;
+            for (Iterator<EventLogCallTree> trees = consumedTrees.iterator(); trees.hasNext(); ) {
+                EventLogCallTree tree = trees.next();
+                if (tree.generation != currentGeneration()) {
+                    trees.remove();
+                    continue;
+                }
+                Thread thread = tree.owner.get();
+                boolean terminated = thread == null || !thread.isAlive();
+                applied += tree.flush();
+                if (terminated && tree.head == tree.tail) {
+                    trees.remove();
+                }
+            }
+            if (consumedTrees.isEmpty() && stopConsumer()) {
+                return;
+            }
+            if (applied == 0) {
+                LockSupport.parkNanos(IDLE_PARK);
+            }
+        }
+    }
+
+    // The new trees are added before startConsumer(), so the consumer stops only if the tree added concurrently
+    // starts the new one
+    private static synchronized boolean stopConsumer() {
+        if (!consumedTrees.isEmpty()) {
+            return false;
+        }
+        consumer = null;
+        return true;
+    }
+
+    @Override
+    void recordCall(int methodId, Object arguments, int weight) {
+        long position = reserve();
+        int slot = (int) position & MASK;
+        kinds[slot] = ENTER;
+        ids[slot] = methodId;
+        weights[slot] = weight;
+        this.arguments[slot] = arguments;
+        times[slot] = System.nanoTime();
+        producerTail = position + 1;
+        TAIL.lazySet(this, producerTail);
+        producedNodes++;
+        openCalls++;
+    }
+
+    @Override
+    void recordFinish(boolean exceptionally) {
+        if (openCalls == 0) {
+            throw new IllegalStateException("Trying to finish last registered method, but hadn't added it before");
+        }
+        long time = System.nanoTime();
+        long position = reserve();
+        int slot = (int) position & MASK;
+        kinds[slot] = exceptionally ? EXIT_EXCEPTIONALLY : EXIT;
+        times[slot] = time;
+        producerTail = position + 1;
+        TAIL.lazySet(this, producerTail);
+        openCalls--;
+    }
+
+    @Override
+    void recordCollapsedLatency(int methodId, long duration, int weight) {
+        long position = reserve();
+        int slot = (int) position & MASK;
+        kinds[slot] = COLLAPSED_LATENCY;
+        ids[slot] = methodId;
+        weights[slot] = weight;
+        times[slot] = duration;
+        producerTail = position + 1;
+        TAIL.lazySet(this, producerTail);
+    }
+
+    // Returns the position of the next event, waits for the consumer if the buffer is full. The trees forgotten by
+    // CallTree#clear() aren't consumed any more, so their events are applied by this thread.
+    private long reserve() {
+        long position = producerTail;
+        if (position - cachedHead == CAPACITY) {
+            cachedHead = head;
+            for (int spins = 0; position - cachedHead == CAPACITY; spins++) {
+                if (generation != currentGeneration()) {
+                    flush();
+                } else if (spins == 0) {
+                    LockSupport.unpark(consumer);
+                } else if (spins < FULL_SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(FULL_PARK);
+                }
+                cachedHead = head;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Builds the nodes of the events written before this call. The consumer thread, the readers of trees and the
+     * producer of the forgotten tree may apply the events, the lock keeps the single writer of nodes.
+     *
+     * @return the amount of applied events
+     */
+    @Override
+    synchronized int flush() {
+        long end = tail;
+        long position = head;
+        for (; position < end; position++) {
+            int slot = (int) position & MASK;
+            switch (kinds[slot]) {
+                case ENTER:
+                    appendCall(ids[slot], arguments[slot], weights[slot], times[slot]);
+                    arguments[slot] = null;
+                    break;
+                case COLLAPSED_LATENCY:
+                    recordLatency(ids[slot], times[slot], weights[slot]);
+                    break;
+                default:
+                    appendFinish(kinds[slot] == EXIT_EXCEPTIONALLY, times[slot]);
+            }
+        }
+        int applied = (int) (position - head);
+        HEAD.lazySet(this, position);
+        return applied;
+    }
+
+    // The producer counts the nodes, since the consumer may be behind it
+    @Override
+    int nodeCount() {
+        return producedNodes;
+    }
+
+    // the nodes are built by the other thread, so they can't be evicted by the recording one
+    @Override
+    boolean evictOldest() {
+        return false;
+    }
+
+    @Override
+    public CallTree snapshot() {
+        flush();
+        return super.snapshot();
+    }
+}
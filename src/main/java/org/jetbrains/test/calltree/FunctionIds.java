@@ -0,0 +1,34 @@
+package org.jetbrains.test.calltree;
+
+import org.jetbrains.test.calltree.utils.NameTable;
+
+import java.util.Arrays;
+
+/**
+ * The ids of method names in {@link SymbolTable} for the names of nodes read by one parser. The names of nodes differ
+ * by the arguments of calls, so the method name is looked up without the arguments and without copying it, and
+ * {@link SymbolTable} is locked once per distinct method instead of once per node. It is used by one thread.
+ */
+class FunctionIds {
+    private final NameTable functionNames = new NameTable();
+    // the ids in SymbolTable by the ids in functionNames
+    private int[] ids = new int[16];
+
+    /**
+     * Returns the id of the method of the node with the given name, the arguments in braces are skipped.
+     */
+    int of(String name) {
+        int i = name.indexOf('{');
+        int length = i == -1 ? name.length() : i;
+        int local = functionNames.find(name, length);
+        if (local == -1) {
+            String functionName = name.substring(0, length);
+            local = functionNames.intern(functionName);
+            if (local == ids.length) {
+                ids = Arrays.copyOf(ids, local * 2);
+            }
+            ids[local] = SymbolTable.intern(functionName);
+        }
+        return ids[local];
+    }
+}
@@ -0,0 +1,167 @@
+package org.jetbrains.test.calltree;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations with the fixed amount of log-linear buckets. The values less than {@code 2 * SUB_BUCKETS}
+ * are counted exactly, every next power of two is split into {@code SUB_BUCKETS} buckets of the same width, so the
+ * relative error of the reported values is less than {@code 1 / SUB_BUCKETS} for every value up to
+ * {@link Long#MAX_VALUE}. Recording a value doesn't allocate.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount, totalValue, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    /**
+     * Records the value the given amount of times, it is used for the calls representing several calls.
+     *
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value, long count) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucket(value)] += count;
+        totalCount += count;
+        totalValue = saturatedAdd(totalValue, saturatedMultiply(value, count));
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values recorded by the given histogram to this one.
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        totalValue = saturatedAdd(totalValue, other.totalValue);
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.merge(this);
+        return copy;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return totalCount == 0 ? 0 : max;
+    }
+
+    // Returns the mean of recorded values, it is underestimated if their sum exceeds Long.MAX_VALUE
+    public long getMean() {
+        return totalCount == 0 ? 0 : totalValue / totalCount;
+    }
+
+    /**
+     * Returns the value, which is not less than the given percent of recorded values, with the precision of the
+     * bucket. The result is the highest value of the bucket bounded by the maximal recorded value.
+     *
+     * @param percentile the percent of values from 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, highestValue(i)));
+            }
+        }
+        return max;
+    }
+
+    public long getP50() {
+        return getValueAtPercentile(50);
+    }
+
+    public long getP90() {
+        return getValueAtPercentile(90);
+    }
+
+    public long getP99() {
+        return getValueAtPercentile(99);
+    }
+
+    public long getP999() {
+        return getValueAtPercentile(99.9);
+    }
+
+    // The sum of values saturates at Long.MAX_VALUE instead of wrapping to negative, the operands are never negative
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    // The product fits if the bit lengths of the operands sum up to at most 63, so only the huge operands are divided
+    private static long saturatedMultiply(long value, long count) {
+        if (Long.numberOfLeadingZeros(value) + Long.numberOfLeadingZeros(count) > 64 || count == 0) {
+            return value * count;
+        }
+        return value > Long.MAX_VALUE / count ? Long.MAX_VALUE : value * count;
+    }
+
+    static int bucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long highestValue(int bucket) {
+        return bucket + 1 == BUCKETS ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count " + getCount() + ", min " + getMin() + ", p50 " + getP50() + ", p90 " + getP90()
+                + ", p99 " + getP99() + ", p999 " + getP999() + ", max " + getMax();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof LatencyHistogram)) {
+            return false;
+        }
+        LatencyHistogram other = (LatencyHistogram) obj;
+        return totalCount == other.totalCount && totalValue == other.totalValue && getMin() == other.getMin()
+                && getMax() == other.getMax() && Arrays.equals(counts, other.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(counts);
+    }
+}
@@ -0,0 +1,345 @@
+package org.jetbrains.test.calltree;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only view of the tree stored in binary format (see {@link BinaryTreeFormat}) backed by the memory mapped file.
+ * Nodes are decoded only when they are visited by {@link #iterator()} or through {@link Node#getChildren()} and are not
+ * kept after that, so the tree may be much bigger than the heap. The index stored at the end of the file is used to
+ * jump to any child without decoding the subtrees of its previous siblings, so only the files stored in
+ * {@link Format#BINARY_INDEXED} format can be mapped. The index of methods stored in the same file gives the calls of
+ * every method sorted by duration, so {@link TreeQuery} decodes only the matching nodes and their ancestors.
+ */
+class MappedCallTree extends CallTree {
+    private final Storage storage;
+
+    private MappedCallTree(Storage storage, Node root) {
+        super(root, root);
+        this.storage = storage;
+    }
+
+    static MappedCallTree map(String pathname) throws IOException, FileParseException {
+        try {
+            Storage storage = new Storage(pathname);
+            MappedCallTree tree = new MappedCallTree(storage, storage.node(0, 0));
+            // the counters of limits follow the index of methods
+            MappedFile.Cursor cursor = storage.file.new Cursor(storage.methodIndex.end());
+            tree.addDroppedNodes(cursor.varint());
+            for (long methods = cursor.varint(); methods > 0; methods--) {
+                String name = cursor.string();
+                long count = cursor.varint();
+                tree.addCollapsedCalls(SymbolTable.intern(name), count, cursor.varint());
+            }
+            return tree;
+        } catch (IllegalStateException | IndexOutOfBoundsException e) {
+            throw new FileParseException("Malformed binary tree", e);
+        }
+    }
+
+    @Override
+    void recordCall(int methodId, Object arguments, int weight) {
+        throw new UnsupportedOperationException("Memory mapped tree is read-only");
+    }
+
+    @Override
+    void recordFinish(boolean exceptionally) {
+        throw new UnsupportedOperationException("Memory mapped tree is read-only");
+    }
+
+    // the mapped tree is never changed
+    @Override
+    public CallTree snapshot() {
+        return this;
+    }
+
+    // Returns the index of methods stored with the tree (see MethodIndex)
+    MethodIndex methodIndex() {
+        return storage.methodIndex;
+    }
+
+    // Returns the nodes from the root to the node with the given index, only the nodes of this path are decoded
+    List<Node> path(int index) {
+        List<Integer> indices = new ArrayList<>();
+        for (int current = index; current != -1; current = storage.parent(current)) {
+            indices.add(current);
+        }
+        Collections.reverse(indices);
+        List<Node> path = new ArrayList<>(indices.size());
+        long parentStart = 0;
+        for (int current : indices) {
+            Node node = storage.node(current, parentStart);
+            path.add(node);
+            parentStart = node.getStartCallTime();
+        }
+        return path;
+    }
+
+    // Iterates the nodes in pre-order keeping the start times of the current path to decode the time deltas.
+    @Override
+    public Iterator<Node> iterator() {
+        return new Iterator<Node>() {
+            private int current = 0, depth = 0;
+            private int[] pathIndices = new int[16];
+            private long[] pathStarts = new long[16];
+
+            @Override
+            public boolean hasNext() {
+                return current < storage.size;
+            }
+
+            @Override
+            public Node next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int parent = storage.parent(current);
+                while (depth > 0 && pathIndices[depth - 1] != parent) {
+                    depth--;
+                }
+                Node node = storage.node(current, depth == 0 ? 0 : pathStarts[depth - 1]);
+                if (depth == pathIndices.length) {
+                    pathIndices = Arrays.copyOf(pathIndices, depth * 2);
+                    pathStarts = Arrays.copyOf(pathStarts, depth * 2);
+                }
+                pathIndices[depth] = current;
+                pathStarts[depth] = node.getStartCallTime();
+                depth++;
+                current++;
+                return node;
+            }
+        };
+    }
+
+    private static class Storage {
+        // the magic, the version and the flags
+        private static final int HEADER_SIZE = BinaryTreeFormat.MAGIC.length + 2;
+        private final MappedFile file;
+        private final int flags, size, nameCount;
+        private final long nodesIndex, namesIndex;
+        private final MethodIndex methodIndex;
+        // The decoded names and the ids of their methods by the name references increased by one, the views of
+        // nodes with the same name share them instead of decoding the name and looking it up in SymbolTable for
+        // every node. The arrays are filled lazily and may be raced, the name is published before its method id.
+        private final String[] names;
+        private final int[] functionIds;
+
+        // The offsets and counts of the trailer and the index are checked once here, so the corrupt file fails with
+        // FileParseException instead of reading outside of the index while the nodes are decoded
+        Storage(String pathname) throws IOException, FileParseException {
+            file = new MappedFile(pathname);
+            long length = file.length();
+            if (length < HEADER_SIZE + BinaryTreeFormat.TRAILER_SIZE
+                    || !file.contains(0, BinaryTreeFormat.MAGIC)
+                    || !file.contains(length - BinaryTreeFormat.MAGIC.length, BinaryTreeFormat.MAGIC)) {
+                throw new FileParseException("The given file doesn't contain tree in binary format");
+            }
+            int version = file.get(BinaryTreeFormat.MAGIC.length) & 0xFF;
+            if (version != BinaryTreeFormat.VERSION) {
+                throw new FileParseException("Unsupported binary tree format version " + version);
+            }
+            flags = file.get(BinaryTreeFormat.MAGIC.length + 1);
+            if ((flags & BinaryTreeFormat.INDEXED) == 0) {
+                throw new FileParseException("The given file doesn't contain the index, it should be stored "
+                        + "in BINARY_INDEXED format");
+            }
+            long indexEnd = length - BinaryTreeFormat.TRAILER_SIZE;
+            long methodsDirectory = file.getLong(indexEnd);
+            nodesIndex = file.getLong(indexEnd + 8);
+            // the nodes are followed by the hash of the root
+            if (nodesIndex < HEADER_SIZE + 4 || nodesIndex > indexEnd - 8) {
+                throw new FileParseException("Malformed offset of the index " + nodesIndex);
+            }
+            size = file.getInt(nodesIndex);
+            if (size < 1 || size > (indexEnd - nodesIndex - 8) / BinaryTreeFormat.INDEX_ENTRY_SIZE) {
+                throw new FileParseException("Malformed amount of nodes " + size);
+            }
+            namesIndex = nodesIndex + 4 + (long) size * BinaryTreeFormat.INDEX_ENTRY_SIZE;
+            nameCount = file.getInt(namesIndex);
+            if (nameCount < 1 || nameCount > (indexEnd - namesIndex - 4) / 8) {
+                throw new FileParseException("Malformed amount of names " + nameCount);
+            }
+            names = new String[nameCount];
+            functionIds = new int[nameCount];
+            checkIndex();
+            methodIndex = new MethodIndex(file, namesIndex + 4 + (long) nameCount * 8, methodsDirectory, indexEnd,
+                    size);
+        }
+
+        // Checks that every name and node starts among the nodes, every subtree and every parent is in the tree and
+        // every node refers to the known name, only the name reference of the node is read
+        private void checkIndex() throws FileParseException {
+            long nodesEnd = nodesIndex - 4;
+            for (int id = 0; id < nameCount; id++) {
+                long offset = nameOffset(id);
+                if (offset < HEADER_SIZE || offset >= nodesEnd) {
+                    throw new FileParseException("Malformed offset of name " + id);
+                }
+            }
+            for (int index = 0; index < size; index++) {
+                long offset = offset(index);
+                int subtreeSize = subtreeSize(index), parent = parent(index);
+                if (offset < HEADER_SIZE || offset >= nodesEnd || subtreeSize < 1 || subtreeSize > size - index
+                        || (index == 0 ? parent != -1 : parent < 0 || parent >= index)) {
+                    throw new FileParseException("Malformed index of node " + index);
+                }
+                MappedFile.Cursor cursor = file.new Cursor(offset);
+                long id;
+                try {
+                    id = cursor.varint();
+                } catch (IllegalStateException e) {
+                    throw new FileParseException("Malformed node " + index, e);
+                }
+                if (id >= nameCount) {
+                    throw new FileParseException("Reference to unknown name " + id);
+                }
+            }
+        }
+
+        long offset(int index) {
+            return file.getLong(nodesIndex + 4 + (long) index * BinaryTreeFormat.INDEX_ENTRY_SIZE);
+        }
+
+        int subtreeSize(int index) {
+            return file.getInt(nodesIndex + 4 + (long) index * BinaryTreeFormat.INDEX_ENTRY_SIZE + 8);
+        }
+
+        int parent(int index) {
+            return file.getInt(nodesIndex + 4 + (long) index * BinaryTreeFormat.INDEX_ENTRY_SIZE + 12);
+        }
+
+        int hash(int index) {
+            return file.getInt(nodesIndex + 4 + (long) index * BinaryTreeFormat.INDEX_ENTRY_SIZE + 16);
+        }
+
+        // the name references of all nodes are checked by checkIndex()
+        long nameOffset(int id) {
+            return file.getLong(namesIndex + 4 + (long) id * 8);
+        }
+
+        Node node(int index, long parentStart) {
+            MappedFile.Cursor cursor = file.new Cursor(offset(index));
+            int id = (int) cursor.varint();
+            long nameOffset = nameOffset(id);
+            if (nameOffset == cursor.position) {
+                long nameLength = cursor.varint();
+                cursor.position += nameLength;
+            }
+            long start = parentStart + BinaryTreeFormat.unZigZag(cursor.varint());
+            long duration = cursor.varint();
+            int weight = (int) cursor.varint();
+            long[] counters = null;
+            if ((flags & BinaryTreeFormat.CONTEXTS) != 0) {
+                counters = new long[LazyNode.COUNTERS];
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] = cursor.varint();
+                }
+            }
+            int childCount = (int) cursor.varint();
+            String name = names[id];
+            int functionId = functionIds[id] - 1;
+            if (name == null || functionId == -1) {
+                name = file.new Cursor(nameOffset).string();
+                functionId = SymbolTable.intern(Node.functionName(name));
+                names[id] = name;
+                functionIds[id] = functionId + 1;
+            }
+            LazyNode node = new LazyNode(this, index, name, functionId, start,
+                    BinaryTreeFormat.decodeEnd(start, duration), childCount, counters);
+            node.exceptional = BinaryTreeFormat.isExceptional(duration);
+            node.weight = weight;
+            return node;
+        }
+    }
+
+    // The node decoded from the mapped file, its children are decoded on every access. The node of the tree of
+    // calling contexts keeps the counters of its merged calls in the order they are stored.
+    private static class LazyNode extends Node {
+        private static final int COUNTERS = 6;
+        private final Storage storage;
+        private final int index, childCount;
+        private final long[] counters;
+        private int[] childIndices;
+        private final List<Node> children = new AbstractList<Node>() {
+            @Override
+            public Node get(int i) {
+                if (childIndices == null) {
+                    childIndices = new int[childCount];
+                    for (int k = 0, child = index + 1; k < childCount; k++) {
+                        childIndices[k] = child;
+                        child += storage.subtreeSize(child);
+                    }
+                }
+                return storage.node(childIndices[i], getStartCallTime());
+            }
+
+            @Override
+            public int size() {
+                return childCount;
+            }
+        };
+
+        LazyNode(Storage storage, int index, String name, int functionId, long startCallTime, long endCallTime,
+                 int childCount, long[] counters) {
+            super(functionId, name, startCallTime, endCallTime);
+            this.storage = storage;
+            this.index = index;
+            this.childCount = childCount;
+            this.counters = counters;
+        }
+
+        @Override
+        void printCounters(StringBuilder result) {
+            if (counters != null) {
+                appendCounters(result);
+            }
+        }
+
+        @Override
+        public int getCallCount() {
+            return counters == null ? super.getCallCount() : (int) counters[0];
+        }
+
+        @Override
+        public long getEstimatedCallCount() {
+            return counters == null ? super.getEstimatedCallCount() : counters[1];
+        }
+
+        @Override
+        public long executionTime() {
+            return counters == null ? super.executionTime() : counters[2];
+        }
+
+        @Override
+        public long getEstimatedExecutionTime() {
+            return counters == null ? super.getEstimatedExecutionTime() : counters[3];
+        }
+
+        @Override
+        public long getMinExecutionTime() {
+            return counters == null ? super.getMinExecutionTime() : counters[4];
+        }
+
+        @Override
+        public long getMaxExecutionTime() {
+            return counters == null ? super.getMaxExecutionTime() : counters[5];
+        }
+
+        @Override
+        List<Node> children() {
+            return children;
+        }
+
+        // the hash is taken from the index, otherwise the whole subtree would be decoded for every node
+        @Override
+        public int hashCode() {
+            return storage.hash(index);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.jetbrains.test.calltree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only file mapped by segments of 1 GB, so the files bigger than 2 GB are mapped too. The numbers are read in
+ * the big-endian order of {@link java.io.DataOutputStream}, the varints are read like {@link BinaryTreeFormat} writes
+ * them. The file may be read by several threads.
+ */
+class MappedFile {
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    MappedFile(String pathname) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(pathname, "r");
+             FileChannel channel = file.getChannel()) {
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SEGMENT_MASK + 1, length - position));
+            }
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    byte get(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+    }
+
+    int getInt(long position) {
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            result = (result << 8) | (get(position + i) & 0xFF);
+        }
+        return result;
+    }
+
+    long getLong(long position) {
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    // checks whether the given bytes are stored at the given position
+    boolean contains(long position, byte[] bytes) {
+        if (position < 0 || position + bytes.length > length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The position in the file moved by the read values
+    class Cursor {
+        long position;
+
+        Cursor(long position) {
+            this.position = position;
+        }
+
+        long varint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = get(position++);
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalStateException("Malformed varint at " + position);
+        }
+
+        // Reads the UTF-8 string prefixed by its length
+        String string() {
+            long start = position;
+            long stringLength = varint();
+            if (stringLength < 0 || stringLength > length - position) {
+                throw new IllegalStateException("Malformed name length " + stringLength + " at " + start);
+            }
+            byte[] bytes = new byte[(int) stringLength];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = get(position++);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package org.jetbrains.test.calltree;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index of methods stored in the footer of {@link CallTree.Format#BINARY_INDEXED} trees and used by
+ * {@link TreeQuery}: the calls of every method sorted by duration, so the range of durations is found by the binary
+ * search without decoding the tree. The index is written with the tree (see {@link BinaryTreeFormat}), so it is ready
+ * as soon as the tree is mapped. Writing takes about 32 bytes of heap per node.
+ * <p>
+ * The calls of every method are written in blocks of {@link #BLOCK_SIZE} calls, every call is written as varints: the
+ * difference of its duration and the duration of the previous call of the block (-1 before the first call, so the
+ * unfinished calls with the duration -1 are written as 0), the index of its node, its depth and the zigzag difference
+ * of its start time and the start time of the previous call of the block. Then the directory follows: the number of
+ * methods and for every method its name without arguments and the number of its calls as varints, then for every
+ * block of calls of every method the offset of the block and the duration of its first call. The offset of the
+ * directory is stored in the trailer of the tree file.
+ */
+class MethodIndex {
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_ENTRY_SIZE = 16;
+    // the varints of every call
+    private static final int CALL_FIELDS = 4;
+
+    private final MappedFile file;
+    private final String[] names;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final int[] callCounts;
+    // the offsets of the tables of blocks of every method
+    private final long[] blockTables;
+    // the position after the directory
+    private final long end;
+
+    /**
+     * Reads the directory of the index, which blocks start at {@code blocksStart} and which directory ends before
+     * {@code limit}. The counts and the offsets of blocks are checked, so the blocks are decoded only inside the index.
+     *
+     * @param nodes the amount of nodes of the tree, every node is the call of one method
+     */
+    MethodIndex(MappedFile file, long blocksStart, long directory, long limit, int nodes) throws FileParseException {
+        this.file = file;
+        if (directory < blocksStart || directory >= limit) {
+            throw new FileParseException("Malformed offset of the index of methods " + directory);
+        }
+        MappedFile.Cursor cursor = file.new Cursor(directory);
+        long methodCount = cursor.varint();
+        if (methodCount < 1 || methodCount > nodes) {
+            throw new FileParseException("Malformed amount of methods " + methodCount);
+        }
+        names = new String[(int) methodCount];
+        callCounts = new int[names.length];
+        blockTables = new long[names.length];
+        long calls = 0;
+        for (int method = 0; method < names.length; method++) {
+            names[method] = cursor.string();
+            ids.put(names[method], method);
+            long count = cursor.varint();
+            calls += count;
+            if (count < 1 || calls > nodes) {
+                throw new FileParseException("Malformed amount of calls of " + names[method]);
+            }
+            callCounts[method] = (int) count;
+        }
+        if (calls != nodes) {
+            throw new FileParseException("The index of methods doesn't contain every node");
+        }
+        for (int method = 0; method < names.length; method++) {
+            blockTables[method] = cursor.position;
+            cursor.position += blocks(callCounts[method]) * BLOCK_ENTRY_SIZE;
+        }
+        end = cursor.position;
+        if (end > limit) {
+            throw new FileParseException("Unexpected end of the index of methods");
+        }
+        for (long entry = blockTables[0]; entry < end; entry += BLOCK_ENTRY_SIZE) {
+            long offset = file.getLong(entry);
+            if (offset < blocksStart || offset >= directory) {
+                throw new FileParseException("Malformed offset of the block of calls " + offset);
+            }
+        }
+    }
+
+    // Returns the position after the directory, the counters of limits are stored there
+    long end() {
+        return end;
+    }
+
+    // Skips the index of the tree with the given amount of nodes in the stream, the blocks are decoded to find the end
+    static void skip(DataInputStream in, int nodes) throws IOException, FileParseException {
+        for (long i = (long) nodes * CALL_FIELDS; i > 0; i--) {
+            BinaryTreeFormat.readVarint(in);
+        }
+        long blocks = 0;
+        for (long methods = BinaryTreeFormat.readVarint(in); methods > 0; methods--) {
+            BinaryTreeFormat.skipFully(in, BinaryTreeFormat.readVarint(in));
+            blocks += blocks(BinaryTreeFormat.readVarint(in));
+        }
+        BinaryTreeFormat.skipFully(in, blocks * BLOCK_ENTRY_SIZE);
+    }
+
+    /**
+     * The calls collected while the indexed tree is written, they are written after the index of nodes.
+     */
+    static class Writer {
+        // the local ids of methods by their ids in SymbolTable and their names
+        private final Map<Integer, Integer> methods = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private int[] nodeMethods = new int[16], depths = new int[16];
+        private long[] starts = new long[16], durations = new long[16];
+        private int count;
+
+        // Adds the next node in pre-order, the parent is the index of the parent node or -1 for the root
+        void add(CallTree.Node node, int parent) {
+            if (count == nodeMethods.length) {
+                nodeMethods = Arrays.copyOf(nodeMethods, count * 2);
+                depths = Arrays.copyOf(depths, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            Integer method = methods.get(node.getFunctionId());
+            if (method == null) {
+                method = names.size();
+                methods.put(node.getFunctionId(), method);
+                names.add(node.getFunctionName());
+            }
+            nodeMethods[count] = method;
+            depths[count] = parent == -1 ? 0 : depths[parent] + 1;
+            starts[count] = node.getStartCallTime();
+            durations[count] = node.getEndCallTime() == -1 ? -1 : node.getEndCallTime() - node.getStartCallTime();
+            count++;
+        }
+
+        /**
+         * Writes the calls grouped by methods with the counting sort and then sorted by duration inside every group.
+         *
+         * @return the offset of the directory
+         */
+        long write(DataOutputStream out, BinaryTreeFormat.CountingOutputStream counter) throws IOException {
+            int methodCount = names.size();
+            int[] groupStarts = new int[methodCount + 1];
+            for (int i = 0; i < count; i++) {
+                groupStarts[nodeMethods[i] + 1]++;
+            }
+            for (int method = 0; method < methodCount; method++) {
+                groupStarts[method + 1] += groupStarts[method];
+            }
+            int[] order = new int[count];
+            int[] positions = Arrays.copyOf(groupStarts, methodCount);
+            for (int i = 0; i < count; i++) {
+                order[positions[nodeMethods[i]]++] = i;
+            }
+            int[] buffer = new int[count];
+            for (int method = 0; method < methodCount; method++) {
+                sortByKey(order, buffer, groupStarts[method], groupStarts[method + 1], durations);
+            }
+
+            long[] blockOffsets = new long[(int) blocks(count) + methodCount];
+            int block = 0;
+            for (int method = 0; method < methodCount; method++) {
+                for (int from = groupStarts[method]; from < groupStarts[method + 1]; from += BLOCK_SIZE) {
+                    blockOffsets[block++] = counter.count;
+                    long previousDuration = -1, previousStart = 0;
+                    for (int call = from; call < Math.min(from + BLOCK_SIZE, groupStarts[method + 1]); call++) {
+                        int node = order[call];
+                        BinaryTreeFormat.writeVarint(out, durations[node] - previousDuration);
+                        BinaryTreeFormat.writeVarint(out, node);
+                        BinaryTreeFormat.writeVarint(out, depths[node]);
+                        BinaryTreeFormat.writeVarint(out, BinaryTreeFormat.zigZag(starts[node] - previousStart));
+                        previousDuration = durations[node];
+                        previousStart = starts[node];
+                    }
+                }
+            }
+
+            long directory = counter.count;
+            BinaryTreeFormat.writeVarint(out, methodCount);
+            for (int method = 0; method < methodCount; method++) {
+                byte[] bytes = names.get(method).getBytes(StandardCharsets.UTF_8);
+                BinaryTreeFormat.writeVarint(out, bytes.length);
+                out.write(bytes);
+                BinaryTreeFormat.writeVarint(out, groupStarts[method + 1] - groupStarts[method]);
+            }
+            block = 0;
+            for (int method = 0; method < methodCount; method++) {
+                for (int from = groupStarts[method]; from < groupStarts[method + 1]; from += BLOCK_SIZE) {
+                    out.writeLong(blockOffsets[block++]);
+                    out.writeLong(durations[order[from]]);
+                }
+            }
+            return directory;
+        }
+    }
+
+    // Stable merge sort of the range of items by their keys, the buffer should be as long as the items
+    private static void sortByKey(int[] items, int[] buffer, int from, int to, long[] keys) {
+        for (int width = 1; width < to - from; width *= 2) {
+            for (int left = from; left < to - width; left += 2 * width) {
+                int middle = left + width, right = Math.min(left + 2 * width, to);
+                int i = left, j = middle, k = left;
+                while (i < middle && j < right) {
+                    buffer[k++] = keys[items[j]] < keys[items[i]] ? items[j++] : items[i++];
+                }
+                while (i < middle) {
+                    buffer[k++] = items[i++];
+                }
+                while (j < right) {
+                    buffer[k++] = items[j++];
+                }
+                System.arraycopy(buffer, left, items, left, right - left);
+            }
+        }
+    }
+
+    private static long blocks(long calls) {
+        return (calls + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    // Returns the names of methods, the position of the name is the local id of the method
+    List<String> methodNames() {
+        return Arrays.asList(names);
+    }
+
+    // Returns the local id of the method or -1 if there are no calls of the method
+    int methodId(String name) {
+        return ids.getOrDefault(name, -1);
+    }
+
+    // Returns the new cursor over the calls of the method, the unfinished calls with the duration -1 go first
+    Calls calls(int method) {
+        return new Calls(method);
+    }
+
+    /**
+     * The calls of one method sorted by duration. The calls are decoded by blocks and the last decoded block is kept,
+     * so the cursor should be used by one thread.
+     */
+    class Calls {
+        private final int method;
+        private int block = -1;
+        private final int[] nodes = new int[BLOCK_SIZE], depths = new int[BLOCK_SIZE];
+        private final long[] starts = new long[BLOCK_SIZE], durations = new long[BLOCK_SIZE];
+
+        private Calls(int method) {
+            this.method = method;
+        }
+
+        int count() {
+            return callCounts[method];
+        }
+
+        // Returns the position of the first call with the duration greater than the given one
+        int firstLongerThan(long duration) {
+            // the amount of blocks starting with the calls not longer than the given duration
+            int low = 0, high = (int) blocks(count());
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (file.getLong(blockTables[method] + (long) middle * BLOCK_ENTRY_SIZE + 8) > duration) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            if (low == 0) {
+                return 0;
+            }
+            int call = (low - 1) * BLOCK_SIZE;
+            while (call < count() && duration(call) <= duration) {
+                call++;
+            }
+            return call;
+        }
+
+        int node(int call) {
+            return nodes[load(call)];
+        }
+
+        int depth(int call) {
+            return depths[load(call)];
+        }
+
+        long start(int call) {
+            return starts[load(call)];
+        }
+
+        long duration(int call) {
+            return durations[load(call)];
+        }
+
+        // Decodes the block of the given call, returns the position of the call in the block
+        private int load(int call) {
+            if (call / BLOCK_SIZE != block) {
+                block = call / BLOCK_SIZE;
+                MappedFile.Cursor cursor = file.new Cursor(file.getLong(blockTables[method]
+                        + (long) block * BLOCK_ENTRY_SIZE));
+                long duration = -1, start = 0;
+                for (int i = 0; i < Math.min(BLOCK_SIZE, count() - block * BLOCK_SIZE); i++) {
+                    durations[i] = duration += cursor.varint();
+                    nodes[i] = (int) cursor.varint();
+                    depths[i] = (int) cursor.varint();
+                    starts[i] = start += BinaryTreeFormat.unZigZag(cursor.varint());
+                }
+            }
+            return call % BLOCK_SIZE;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.jetbrains.test.calltree;
+
+/**
+ * The cost of recording a call measured on the current JVM. The times of nodes are the differences of
+ * {@link System#nanoTime()} values taken while recording, so they include the cost of recording all nested calls
+ * and a part of the cost of recording the call itself. The corrected time of the node is its time reduced by
+ * {@link #getCallOverhead()} for every descendant and by {@link #getInnerOverhead()} once.
+ * <p>
+ * {@link #calibrate()} measures only the cost of {@link CallTree#addCapturedMethodCall(int, Object)} and
+ * {@link CallTree#finishMethodCall()}. The cost of the woven advice is included only if the calls of the empty
+ * profiled method are given to {@link #calibrate(Runnable)}, the woven method belongs to the profiler.
+ */
+public final class OverheadCalibration {
+    /**
+     * The calibration which doesn't correct anything.
+     */
+    public static final OverheadCalibration NONE = new OverheadCalibration(0, 0);
+
+    private static final int ROUNDS = 50;
+    private static final int CALLS_PER_ROUND = 2000;
+    private static final String NAME = "overhead calibration";
+
+    private final long callOverhead, innerOverhead;
+
+    /**
+     * @param callOverhead  the time added to the caller by recording a nested call, nanoseconds
+     * @param innerOverhead the part of it included in the time of the recorded call itself, nanoseconds
+     */
+    public OverheadCalibration(long callOverhead, long innerOverhead) {
+        if (callOverhead < 0 || innerOverhead < 0 || innerOverhead > callOverhead) {
+            throw new IllegalArgumentException("Overhead should be non-negative and the inner one shouldn't exceed "
+                    + "the overhead of the call");
+        }
+        this.callOverhead = callOverhead;
+        this.innerOverhead = innerOverhead;
+    }
+
+    /**
+     * Returns the calibration measured by {@link #calibrate()} once on the first call of this method.
+     */
+    public static OverheadCalibration get() {
+        return Holder.CALIBRATION;
+    }
+
+    /**
+     * Measures the cost of recording a call by recording empty calls directly to the tree. The minimum of several
+     * rounds is taken, so the interruptions of the measuring thread don't increase the result.
+     */
+    public static OverheadCalibration calibrate() {
+        return measure(null);
+    }
+
+    /**
+     * Measures the cost of recording a call by the given calls of the empty profiled method, so it includes the cost
+     * of the advice woven into the method. The calls are recorded to the separate tree, which replaces the tree of the
+     * current thread only while measuring, so they aren't seen in {@link CallTree#getTrees()}. If the call isn't
+     * recorded, for example the method isn't woven or its profiling is switched off, it is measured like
+     * {@link #calibrate()}.
+     */
+    public static OverheadCalibration calibrate(Runnable profiledCall) {
+        return measure(isRecorded(profiledCall) ? profiledCall : null);
+    }
+
+    // The minimum of several rounds is taken, so the interruptions of the measuring thread don't increase the result
+    private static OverheadCalibration measure(Runnable profiledCall) {
+        int methodId = SymbolTable.intern(NAME);
+        long callOverhead = Long.MAX_VALUE, innerOverhead = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            CallTree tree = new CallTree(NAME);
+            long start = System.nanoTime();
+            if (profiledCall != null) {
+                CallTree replaced = CallTree.replaceInstance(tree);
+                try {
+                    for (int i = 0; i < CALLS_PER_ROUND; i++) {
+                        profiledCall.run();
+                    }
+                } finally {
+                    CallTree.replaceInstance(replaced);
+                }
+            } else {
+                for (int i = 0; i < CALLS_PER_ROUND; i++) {
+                    tree.addCapturedMethodCall(methodId, null);
+                    tree.finishMethodCall(false);
+                }
+            }
+            long time = System.nanoTime() - start;
+            long innerTime = 0;
+            for (CallTree.Node node : tree) {
+                innerTime += node.executionTime();
+            }
+            callOverhead = Math.min(callOverhead, time / CALLS_PER_ROUND);
+            innerOverhead = Math.min(innerOverhead, innerTime / CALLS_PER_ROUND);
+        }
+        return new OverheadCalibration(callOverhead, Math.min(innerOverhead, callOverhead));
+    }
+
+    // checks whether the given call is recorded by the advice
+    private static boolean isRecorded(Runnable profiledCall) {
+        CallTree tree = new CallTree(NAME);
+        CallTree replaced = CallTree.replaceInstance(tree);
+        try {
+            profiledCall.run();
+        } finally {
+            CallTree.replaceInstance(replaced);
+        }
+        return tree.iterator().next().getChildCount() != 0;
+    }
+
+    public long getCallOverhead() {
+        return callOverhead;
+    }
+
+    public long getInnerOverhead() {
+        return innerOverhead;
+    }
+
+    /**
+     * Returns the overhead included in the time of the given amount of calls with the given amount of nested calls.
+     */
+    public long correction(long calls, long nestedCalls) {
+        return calls * innerOverhead + nestedCalls * callOverhead;
+    }
+
+    @Override
+    public String toString() {
+        return "call overhead " + callOverhead + " ns, inner overhead " + innerOverhead + " ns";
+    }
+
+    // lazy initialization of the measured calibration
+    private static class Holder {
+        private static final OverheadCalibration CALIBRATION = calibrate();
+    }
+}
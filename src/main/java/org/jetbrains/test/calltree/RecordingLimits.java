@@ -0,0 +1,69 @@
+package org.jetbrains.test.calltree;
+
+/**
+ * The bounds of memory taken by {@link CallTree}: the maximal amount of nodes except the root and the maximal depth
+ * of nodes. The call, which would exceed the bounds, is handled by the {@link OverflowPolicy}, the nested calls of
+ * the call without the node are never recorded as nodes. The amount of calls without nodes is counted by
+ * {@link CallTree#getDroppedNodes()}.
+ */
+public final class RecordingLimits {
+    /**
+     * Records every call.
+     */
+    public static final RecordingLimits NONE = new RecordingLimits(Integer.MAX_VALUE, Integer.MAX_VALUE,
+            OverflowPolicy.DROP);
+
+    final int maxNodes;
+    final int maxDepth;
+    final OverflowPolicy policy;
+
+    private RecordingLimits(int maxNodes, int maxDepth, OverflowPolicy policy) {
+        this.maxNodes = maxNodes;
+        this.maxDepth = maxDepth;
+        this.policy = policy;
+    }
+
+    /**
+     * @param maxNodes the maximal amount of nodes of the tree except the root, should be positive
+     * @param maxDepth the maximal depth of nodes, the root-level calls have the depth 1, should be positive
+     * @param policy   the way of handling the calls exceeding the limits
+     */
+    public static RecordingLimits of(int maxNodes, int maxDepth, OverflowPolicy policy) {
+        if (maxNodes < 1 || maxDepth < 1) {
+            throw new IllegalArgumentException("Limits should be positive");
+        }
+        return new RecordingLimits(maxNodes, maxDepth, policy);
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "none" : "nodes " + maxNodes + ", depth " + maxDepth + ", " + policy;
+    }
+
+    /**
+     * The ways of handling calls exceeding the limits.
+     * {@code DROP} doesn't record them at all. {@code EVICT_OLDEST} removes the oldest finished call with its subtree
+     * to free the room for the new call, the finished calls are taken from the root level first and then from the
+     * levels of the unfinished calls, so the tree keeps the most recent calls like the ring buffer. The calls which
+     * are too deep or find no finished call to evict are dropped. Eviction is supported only by the trees of
+     * {@link CallTree.Storage#NODES} storage in {@link CallTree.RecordingMode#CALLS} mode, the other trees drop
+     * the calls. {@code COLLAPSE} keeps the amount and the total time of calls without nodes for every method (see
+     * {@link CallTree#getCollapsedCalls()} and {@link CallTree#getCollapsedTimes()}), they are also recorded in
+     * latency histograms if they are enabled.
+     */
+    public enum OverflowPolicy {
+        DROP, EVICT_OLDEST, COLLAPSE
+    }
+}
@@ -0,0 +1,226 @@
+package org.jetbrains.test.calltree;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the calls of all trees (see {@link CallTree#getTrees()}) to files in the background thread. Every dump
+ * appends to the current file the tree of calls finished since the previous dump for every tree with such calls,
+ * they can be read back by {@link CallTree#readAllFromStream(InputStream)} after decompression. The file is rotated
+ * after a dump when it exceeds the maximal size or age. The text is streamed through the buffered and optionally
+ * compressed output, so neither the application threads are blocked nor the whole text is kept in memory.
+ * <p>
+ * The calls are read from the nodes published by the recording thread like {@link CallTree#snapshot()} does, but
+ * only the newly finished calls and the path to them are copied. Every finished call is written once, its
+ * unfinished ancestors are written with the finish time -1 in every dump with its descendants, so they should be
+ * skipped when the dumps are summed. Likewise the counters of calls without nodes (see {@link RecordingLimits}) of
+ * every dump are the ones changed since the previous dump, the tree is dumped even if only its counters changed.
+ * The trees of {@link CallTree.RecordingMode#CALLING_CONTEXTS} and {@link CallTree.RecordingMode#HISTOGRAMS} modes
+ * are bounded by the number of paths, so their snapshots are written whole by every dump with the whole counters.
+ * <p>
+ * The settings should be changed before {@link #start()}.
+ */
+public class RollingDumpWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final String prefix;
+    private final ScheduledExecutorService executor;
+    private CallTree.Format format = CallTree.Format.TEXT;
+    private Compression compression = Compression.NONE;
+    private long period = TimeUnit.MINUTES.toNanos(1);
+    private long maxFileSize = 64 << 20;
+    private long maxFileAge = TimeUnit.HOURS.toNanos(1);
+
+    // the state of the current file, it is accessed only by the writer thread
+    private BinaryTreeFormat.CountingOutputStream file;
+    private OutputStream output;
+    private Path filePath;
+    private long fileOpenTime;
+    private int fileIndex;
+    private volatile IOException lastError;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // the cursors of dumped trees by identity, only the trees returned by the last dump are kept
+    private Map<CallTree, DumpCursor> cursors = new IdentityHashMap<>();
+
+    /**
+     * @param directory the directory of dump files, it is created if it doesn't exist
+     * @param prefix    the prefix of names of dump files
+     */
+    public RollingDumpWriter(String directory, String prefix) {
+        this.directory = Paths.get(directory);
+        this.prefix = prefix;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "call tree dump writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setFormat(CallTree.Format format) {
+        this.format = format;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    // Sets the period of dumps
+    public void setPeriod(long period, TimeUnit unit) {
+        this.period = unit.toNanos(period);
+    }
+
+    // Sets the size of the file, after which the next file is started, in bytes written to the disk
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    // Sets the time, after which the next file is started
+    public void setMaxFileAge(long maxFileAge, TimeUnit unit) {
+        this.maxFileAge = unit.toNanos(maxFileAge);
+    }
+
+    /**
+     * Starts the periodic dumps.
+     */
+    public void start() {
+        executor.scheduleAtFixedRate(this::dump, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Requests the dump in the writer thread without waiting for it.
+     *
+     * @return the future completed after the dump is written and flushed
+     */
+    public Future<?> dumpNow() {
+        return executor.submit(this::dump);
+    }
+
+    // Returns the last error of writing dumps, the writer continues to work after errors. The unexpected exceptions
+    // of dumps are wrapped, since the periodic dumps would be cancelled by them.
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    // Returns the path of the file written now, null if there is no such file
+    public Path getCurrentFile() {
+        return filePath;
+    }
+
+    private void dump() {
+        try {
+            Map<CallTree, DumpCursor> treeCursors = new IdentityHashMap<>();
+            for (CallTree tree : CallTree.getTrees()) {
+                DumpCursor cursor = cursors.get(tree);
+                if (cursor == null) {
+                    cursor = tree.dumpCursor();
+                }
+                treeCursors.put(tree, cursor);
+                CallTree calls = cursor.next();
+                if (calls != null) {
+                    if (output == null) {
+                        open();
+                    }
+                    calls.writeTo(output, format);
+                }
+            }
+            cursors = treeCursors;
+            if (output == null) {
+                return;
+            }
+            output.flush();
+            if (file.count >= maxFileSize || System.nanoTime() - fileOpenTime >= maxFileAge) {
+                closeFile();
+            }
+        } catch (IOException | RuntimeException e) {
+            lastError = e instanceof IOException ? (IOException) e : new IOException("Dump failed", e);
+            try {
+                closeFile();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        filePath = directory.resolve(prefix + "-" + time + "-" + fileIndex++ + ".tree" + compression.extension);
+        file = new BinaryTreeFormat.CountingOutputStream(Files.newOutputStream(filePath));
+        output = compression.wrap(file);
+        fileOpenTime = System.nanoTime();
+    }
+
+    private void closeFile() throws IOException {
+        if (output != null) {
+            OutputStream closed = output;
+            output = null;
+            file = null;
+            closed.close();
+        }
+    }
+
+    /**
+     * Writes the last dump, closes the current file and stops the writer thread. Closing again has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        Future<?> lastDump = executor.submit(() -> {
+            dump();
+            try {
+                closeFile();
+            } catch (IOException e) {
+                lastError = e;
+            }
+        });
+        executor.shutdown();
+        try {
+            lastDump.get();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+    }
+
+    /**
+     * Compression of dump files. {@code GZIP} files can be read by the usual tools, {@code DEFLATE} ones are the
+     * zlib streams without the gzip header.
+     */
+    public enum Compression {
+        NONE(""), GZIP(".gz"), DEFLATE(".zz");
+
+        private final String extension;
+
+        Compression(String extension) {
+            this.extension = extension;
+        }
+
+        OutputStream wrap(OutputStream stream) throws IOException {
+            switch (this) {
+                case GZIP:
+                    return new GZIPOutputStream(stream, BUFFER_SIZE, true);
+                case DEFLATE:
+                    return new BufferedOutputStream(new DeflaterOutputStream(stream, true), BUFFER_SIZE);
+                default:
+                    return new BufferedOutputStream(stream, BUFFER_SIZE);
+            }
+        }
+    }
+}
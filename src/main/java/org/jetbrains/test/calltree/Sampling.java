@@ -0,0 +1,75 @@
+package org.jetbrains.test.calltree;
+
+import java.util.function.LongSupplier;
+
+/**
+ * The way of sampling calls recorded by {@link CallTree}. The decision is made only for the root-level calls of the
+ * tree: the sampled call is recorded with its whole subtree and the other ones are skipped with their subtrees, so
+ * the skipped calls cost only a counter update. Every recorded node keeps the sampling weight, that is the amount
+ * of root-level calls represented by its subtree, and the aggregators multiply counts and times by it, so they stay
+ * unbiased estimates.
+ */
+public final class Sampling {
+    /**
+     * Records every call.
+     */
+    public static final Sampling ALL = new Sampling(1, 0, System::nanoTime);
+
+    // the upper bound of the adaptive interval, so the sampling never stops entirely
+    static final int MAX_INTERVAL = 1 << 20;
+
+    final int interval;
+    final long maxNodesPerSecond;
+    // the source of nanoseconds measuring the windows of the adaptive sampling
+    final LongSupplier clock;
+
+    private Sampling(int interval, long maxNodesPerSecond, LongSupplier clock) {
+        this.interval = interval;
+        this.maxNodesPerSecond = maxNodesPerSecond;
+        this.clock = clock;
+    }
+
+    /**
+     * Records every {@code interval}-th root-level call.
+     *
+     * @param interval the amount of root-level calls per recorded one, should be positive
+     */
+    public static Sampling every(int interval) {
+        if (interval < 1 || interval > MAX_INTERVAL) {
+            throw new IllegalArgumentException("Sampling interval should be between 1 and " + MAX_INTERVAL);
+        }
+        return new Sampling(interval, 0, System::nanoTime);
+    }
+
+    /**
+     * Starts recording every root-level call and then adjusts the interval between recorded root-level calls, so no
+     * more than the given amount of nodes is recorded per second by the tree.
+     *
+     * @param maxNodesPerSecond the budget of recorded nodes per second of every tree, should be positive
+     */
+    public static Sampling adaptive(long maxNodesPerSecond) {
+        return adaptive(maxNodesPerSecond, System::nanoTime);
+    }
+
+    /**
+     * The same as {@link #adaptive(long)} with the rate of nodes measured by the given clock instead of
+     * {@link System#nanoTime()}, so the interval can be driven without waiting for the real time.
+     *
+     * @param clock the source of the current time in nanoseconds, it is read at the recorded root-level calls only
+     */
+    public static Sampling adaptive(long maxNodesPerSecond, LongSupplier clock) {
+        if (maxNodesPerSecond <= 0) {
+            throw new IllegalArgumentException("Nodes budget should be positive");
+        }
+        return new Sampling(1, maxNodesPerSecond, clock);
+    }
+
+    public boolean isAdaptive() {
+        return maxNodesPerSecond != 0;
+    }
+
+    @Override
+    public String toString() {
+        return isAdaptive() ? "adaptive(" + maxNodesPerSecond + ")" : "every(" + interval + ")";
+    }
+}
@@ -0,0 +1,75 @@
+package org.jetbrains.test.calltree;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global table of method names. Every method name gets the integer id once, nodes store the id instead of the name
+ * and aggregators use it as the key, so the names are neither built nor compared while recording calls.
+ * <p>
+ * Only the registration of the new name takes the lock. The names are read by ids from the array published through
+ * the volatile field, the array is replaced by the longer copy when it is full, so the published slots never change.
+ */
+public class SymbolTable {
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[16];
+    // the amount of registered names, it is written after the name and the array, so the reader of the id less
+    // than the size sees the name
+    private static volatile int size;
+
+    private SymbolTable() {
+    }
+
+    /**
+     * Returns the id of the given method name registering it if it hadn't been registered before.
+     */
+    public static int intern(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : register(name);
+    }
+
+    // The id is published to find() after the name is published to name(), so every found id has the name
+    private static synchronized int register(String name) {
+        Integer registered = ids.get(name);
+        if (registered != null) {
+            return registered;
+        }
+        int id = size;
+        String[] table = names;
+        if (id == table.length) {
+            table = Arrays.copyOf(table, id * 2);
+        }
+        table[id] = name;
+        names = table;
+        size = id + 1;
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * Returns the id of the given method name or -1 if it hadn't been registered.
+     */
+    public static int find(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the method name registered with the given id.
+     *
+     * @throws IndexOutOfBoundsException if there is no such id
+     */
+    public static String name(int id) {
+        int registered = size;
+        if (id < 0 || id >= registered) {
+            throw new IndexOutOfBoundsException("Unknown name id " + id);
+        }
+        return names[id];
+    }
+
+    // Returns the amount of registered names, all ids are less than it
+    public static int size() {
+        return size;
+    }
+}
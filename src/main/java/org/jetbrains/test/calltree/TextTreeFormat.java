@@ -0,0 +1,415 @@
+package org.jetbrains.test.calltree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single pass parser of the text representation of {@link CallTree} (see {@link CallTree#toString()}).
+ * <p>
+ * Every line is {@code <shift>*depth [name, hash, start#end]: (child, hash), ...}, the finish time is followed by
+ * {@code '*'} and the sampling weight if it isn't 1, by {@code '~'} and the counters of merged calls of
+ * {@link CallTree.RecordingMode#CALLING_CONTEXTS} trees separated by {@code '/'}: the amount of calls, the estimated
+ * amount, the total time, the estimated time, the minimal and maximal time; and by {@code '!'} if the call was
+ * finished by the exception. The parent of the node is determined by the number of
+ * shifts before it, so the list of children is skipped and the structure is checked by comparing the stored hash
+ * of every node with the computed one. The nodes are kept in an explicit stack instead
+ * of the recursion and the input is read through a fixed char buffer without splitting lines into substrings, so
+ * neither depth nor size of the tree is limited by the thread stack or by the line length.
+ * <p>
+ * The nodes may be followed by the counters of calls without nodes (see {@link RecordingLimits}), they are written
+ * only if some calls were dropped: {@code #dropped <amount>} and {@code #collapsed <amount> <total time> <method>}
+ * for every method with collapsed calls.
+ */
+class TextTreeFormat {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // returned by readIndent() for the line of counters of limits
+    private static final int LIMITS_LINE = -2;
+    private static final String DROPPED = "dropped ", COLLAPSED = "collapsed ";
+    private static final int CONTEXT_COUNTERS = 6;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position, limit;
+
+    // the content between '[' and "]:" of the current line
+    private char[] header = new char[256];
+    private int headerLength;
+    // the fields of the header parsed by parseHeaderTail
+    private int nameLength, hash;
+    private long startCallTime, endCallTime;
+    private int weight;
+    private boolean exceptional;
+    // the counters of merged calls, null if the node has no counters
+    private long[] counters;
+    private final long[] parsedCounters = new long[CONTEXT_COUNTERS];
+    private final FunctionIds functionIds = new FunctionIds();
+
+    private TextTreeFormat(Reader reader) {
+        this.reader = reader;
+    }
+
+    static CallTree read(Reader reader) throws IOException, FileParseException {
+        return new TextTreeFormat(reader).read(false).get(0);
+    }
+
+    // Reads the trees written one after another, every line without shifts starts the new tree
+    static List<CallTree> readAll(Reader reader) throws IOException, FileParseException {
+        return new TextTreeFormat(reader).read(true);
+    }
+
+    private List<CallTree> read(boolean all) throws IOException, FileParseException {
+        List<CallTree> trees = new ArrayList<>();
+        List<CallTree.Node> path = new ArrayList<>();
+        int[] expectedHashes = new int[16];
+        CallTree.Node root = null, last = null;
+        // the read tree followed by the counters of limits
+        CallTree completed = null;
+
+        int depth;
+        while ((depth = readIndent()) != -1) {
+            if (depth == LIMITS_LINE) {
+                if (root != null) {
+                    while (!path.isEmpty()) {
+                        finish(path, expectedHashes);
+                    }
+                    completed = new CallTree(root, last);
+                    trees.add(completed);
+                    root = null;
+                } else if (completed == null) {
+                    throw new FileParseException("The given file is corrupted. The counters of limits precede "
+                            + "the tree");
+                }
+                readLimits(completed);
+                continue;
+            }
+            CallTree.Node node = readNode();
+            if (depth > path.size() || depth == 0 && (root != null || completed != null) && !all) {
+                throw new FileParseException("The given file is corrupted. Unexpected nesting of ["
+                        + node.getName() + "]");
+            }
+            while (path.size() > depth) {
+                finish(path, expectedHashes);
+            }
+            if (depth == 0 && root != null) {
+                trees.add(new CallTree(root, last));
+                root = null;
+            }
+            completed = null;
+            if (root == null) {
+                root = node;
+            } else {
+                path.get(depth - 1).addChild(node);
+                last.next = node;
+            }
+            last = node;
+            if (depth == expectedHashes.length) {
+                expectedHashes = Arrays.copyOf(expectedHashes, depth * 2);
+            }
+            expectedHashes[depth] = hash;
+            path.add(node);
+        }
+        if (root == null) {
+            if (trees.isEmpty()) {
+                throw new FileParseException("The given file doesn't contain tree in required format");
+            }
+            return trees;
+        }
+        while (!path.isEmpty()) {
+            finish(path, expectedHashes);
+        }
+        trees.add(new CallTree(root, last));
+        return trees;
+    }
+
+    static void writeLimits(CallTree tree, Writer writer) throws IOException {
+        if (tree.getDroppedNodes() == 0) {
+            return;
+        }
+        writer.write('#' + DROPPED + tree.getDroppedNodes() + System.lineSeparator());
+        long[] counts = tree.collapsedCounts(), times = tree.collapsedTimes();
+        if (counts != null && times != null) {
+            for (int id = 0; id < Math.min(counts.length, times.length); id++) {
+                if (counts[id] != 0) {
+                    writer.write('#' + COLLAPSED + counts[id] + ' ' + times[id] + ' ' + SymbolTable.name(id)
+                            + System.lineSeparator());
+                }
+            }
+        }
+    }
+
+    // Reads the rest of the line of counters after '#' and adds them to the tree
+    private void readLimits(CallTree tree) throws IOException, FileParseException {
+        headerLength = 0;
+        for (int c = next(); c != -1 && c != '\n'; c = next()) {
+            if (headerLength == header.length) {
+                header = Arrays.copyOf(header, headerLength * 2);
+            }
+            header[headerLength++] = (char) c;
+        }
+        if (headerLength > 0 && header[headerLength - 1] == '\r') {
+            headerLength--;
+        }
+        try {
+            if (startsWith(DROPPED)) {
+                tree.addDroppedNodes(parseCounter(DROPPED.length(), headerLength));
+                return;
+            }
+            if (startsWith(COLLAPSED)) {
+                int countEnd = indexOf(' ', COLLAPSED.length());
+                int timeEnd = indexOf(' ', countEnd + 1);
+                if (countEnd != -1 && timeEnd != -1) {
+                    String name = new String(header, timeEnd + 1, headerLength - timeEnd - 1);
+                    tree.addCollapsedCalls(SymbolTable.intern(name), parseCounter(COLLAPSED.length(), countEnd),
+                            parseCounter(countEnd + 1, timeEnd));
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new FileParseException("The given file contains malformed counters of limits", e);
+        }
+        throw new FileParseException("The given file contains malformed counters of limits");
+    }
+
+    // The counters are never negative
+    private long parseCounter(int from, int to) {
+        if (from >= to || header[from] == '-') {
+            throw new NumberFormatException();
+        }
+        return parseLong(from, to);
+    }
+
+    private boolean startsWith(String prefix) {
+        if (headerLength < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (header[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < headerLength; i++) {
+            if (header[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // removes the last node of the path, all its children are already read, so its hash can be checked
+    private static void finish(List<CallTree.Node> path, int[] expectedHashes) throws FileParseException {
+        CallTree.Node node = path.remove(path.size() - 1);
+        if (node.hashCode() != expectedHashes[path.size()]) {
+            throw new FileParseException("An error ocurred while parsing tree, Hashcodes are not equal.");
+        }
+    }
+
+    // Skips empty lines and the indentation before '['. Returns the number of shifts or -1 at the end of input.
+    private int readIndent() throws IOException, FileParseException {
+        int depth = 0;
+        while (true) {
+            int c = next();
+            switch (c) {
+                case -1:
+                    if (depth != 0) {
+                        throw new FileParseException("Unexpected end of file");
+                    }
+                    return -1;
+                case '|':
+                    depth++;
+                    break;
+                case '[':
+                    return depth;
+                case '#':
+                    if (depth != 0) {
+                        throw new FileParseException("The given file doesn't contain tree in required format");
+                    }
+                    return LIMITS_LINE;
+                case '\n':
+                case '\r':
+                    depth = 0;
+                    break;
+                case ' ':
+                    break;
+                default:
+                    throw new FileParseException("The given file doesn't contain tree in required format");
+            }
+        }
+    }
+
+    // Reads the node header and skips the rest of the line. The name may contain any characters including "]:",
+    // so the header ends at the first "]:" preceded by the valid ", hash, start#end" tail.
+    private CallTree.Node readNode() throws IOException, FileParseException {
+        headerLength = 0;
+        while (true) {
+            int c = next();
+            if (c == -1 || c == '\n') {
+                throw new FileParseException("The given file doesn't contain tree in required format");
+            }
+            if (c == ']' && peek() == ':' && parseHeaderTail()) {
+                break;
+            }
+            if (headerLength == header.length) {
+                header = Arrays.copyOf(header, headerLength * 2);
+            }
+            header[headerLength++] = (char) c;
+        }
+        int c;
+        do {
+            c = next();
+        } while (c != -1 && c != '\n');
+        String name = new String(header, 0, nameLength);
+        int functionId = functionIds.of(name);
+        CallTree.Node node;
+        if (counters == null) {
+            node = new CallTree.Node(functionId, name, CallTree.DEFAULT_SHIFT, startCallTime, endCallTime);
+        } else {
+            CallTree.ContextNode contextNode = new CallTree.ContextNode(functionId, name, CallTree.DEFAULT_SHIFT,
+                    startCallTime, endCallTime);
+            contextNode.setCounters((int) counters[0], counters[1], counters[2], counters[3], counters[4],
+                    counters[5]);
+            node = contextNode;
+        }
+        node.exceptional = exceptional;
+        node.weight = weight;
+        return node;
+    }
+
+    private boolean parseHeaderTail() {
+        exceptional = headerLength > 0 && header[headerLength - 1] == '!';
+        int tailEnd = exceptional ? headerLength - 1 : headerLength;
+        counters = null;
+        int countersStart = parseCounters(tailEnd);
+        if (countersStart != -1) {
+            counters = parsedCounters;
+            tailEnd = countersStart;
+        }
+        weight = 1;
+        int weightStart = numberStart(tailEnd);
+        if (weightStart > 0 && header[weightStart - 1] == '*') {
+            try {
+                long parsedWeight = parseLong(weightStart, tailEnd);
+                if (parsedWeight <= 0 || parsedWeight > Integer.MAX_VALUE) {
+                    return false;
+                }
+                weight = (int) parsedWeight;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            tailEnd = weightStart - 1;
+        }
+        int endStart = numberStart(tailEnd);
+        if (endStart <= 0 || header[endStart - 1] != '#') {
+            return false;
+        }
+        int startStart = numberStart(endStart - 1);
+        if (startStart < 2 || header[startStart - 1] != ' ' || header[startStart - 2] != ',') {
+            return false;
+        }
+        int hashStart = numberStart(startStart - 2);
+        if (hashStart < 2 || header[hashStart - 1] != ' ' || header[hashStart - 2] != ',') {
+            return false;
+        }
+        try {
+            endCallTime = parseLong(endStart, tailEnd);
+            startCallTime = parseLong(startStart, endStart - 1);
+            long parsedHash = parseLong(hashStart, startStart - 2);
+            if (parsedHash != (int) parsedHash) {
+                return false;
+            }
+            hash = (int) parsedHash;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        nameLength = hashStart - 2;
+        return true;
+    }
+
+    // Parses the counters of merged calls ending before end, returns the index of '~' before them or -1 if there
+    // are no counters
+    private int parseCounters(int end) {
+        for (int i = CONTEXT_COUNTERS - 1; i >= 0; i--) {
+            int start = numberStart(end);
+            if (start <= 0 || header[start] == '-' || header[start - 1] != (i == 0 ? '~' : '/')) {
+                return -1;
+            }
+            try {
+                parsedCounters[i] = parseLong(start, end);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            end = start - 1;
+        }
+        return parsedCounters[0] <= Integer.MAX_VALUE ? end : -1;
+    }
+
+    // Returns the index of the first char of the number ending before end, or -1 if there is no number.
+    private int numberStart(int end) {
+        int i = end;
+        while (i > 0 && header[i - 1] >= '0' && header[i - 1] <= '9') {
+            i--;
+        }
+        if (i == end) {
+            return -1;
+        }
+        return i > 0 && header[i - 1] == '-' ? i - 1 : i;
+    }
+
+    private long parseLong(int from, int to) {
+        boolean negative = header[from] == '-';
+        if (negative) {
+            from++;
+        }
+        if (to - from > 19) {
+            throw new NumberFormatException();
+        }
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            result = result * 10 - (header[i] - '0');
+            if (result > 0) {
+                throw new NumberFormatException();
+            }
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException();
+            }
+            result = -result;
+        }
+        return result;
+    }
+
+    private int next() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int read;
+        do {
+            read = reader.read(buffer);
+        } while (read == 0);
+        if (read == -1) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+}
@@ -0,0 +1,208 @@
+package org.jetbrains.test.calltree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Finds the calls of the tree by the method name, the duration, the depth and the start time. The trees mapped from
+ * the files are queried by the index of methods stored with the tree (see {@link MethodIndex}): the calls of the
+ * method are sorted by duration, so the range of durations is found by the binary search and only the matching nodes
+ * and their ancestors are decoded. The other trees are walked entirely.
+ * <p>
+ * The matches are returned from the longest call, the unfinished calls have the duration -1. The root has the depth
+ * 0 and isn't matched by default, the root-level calls have the depth 1.
+ */
+public class TreeQuery {
+    private String method;
+    private long minDuration = Long.MIN_VALUE, maxDuration = Long.MAX_VALUE;
+    private int minDepth = 1, maxDepth = Integer.MAX_VALUE;
+    private long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+    private int limit = Integer.MAX_VALUE;
+
+    /**
+     * Matches only the calls of the method with the given name without arguments, all methods are matched by default.
+     */
+    public TreeQuery method(String name) {
+        method = name;
+        return this;
+    }
+
+    /**
+     * Matches only the calls taking from {@code min} to {@code max} nanoseconds inclusive.
+     */
+    public TreeQuery duration(long min, long max) {
+        minDuration = min;
+        maxDuration = max;
+        return this;
+    }
+
+    /**
+     * Matches only the calls from the depth {@code min} to the depth {@code max} inclusive.
+     */
+    public TreeQuery depth(int min, int max) {
+        minDepth = min;
+        maxDepth = max;
+        return this;
+    }
+
+    /**
+     * Matches only the calls started from {@code from} inclusive to {@code to} exclusive, the times are the values
+     * of {@link System#nanoTime()} like {@link CallTree.Node#getStartCallTime()}.
+     */
+    public TreeQuery startedBetween(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Returns no more than the given amount of the longest matching calls.
+     */
+    public TreeQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit shouldn't be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public List<Match> execute(CallTree tree) {
+        List<Match> matches = tree instanceof MappedCallTree
+                ? searchIndex((MappedCallTree) tree, ((MappedCallTree) tree).methodIndex()) : walk(tree);
+        matches.sort(Comparator.comparingLong(Match::getDuration).reversed());
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    // Takes no more than limit longest matches of every method, so the longest matches of all methods are among them
+    private List<Match> searchIndex(MappedCallTree tree, MethodIndex index) {
+        List<Match> matches = new ArrayList<>();
+        List<Integer> methods = new ArrayList<>();
+        if (method == null) {
+            for (int id = 0; id < index.methodNames().size(); id++) {
+                methods.add(id);
+            }
+        } else if (index.methodId(method) != -1) {
+            methods.add(index.methodId(method));
+        }
+        for (int id : methods) {
+            MethodIndex.Calls calls = index.calls(id);
+            int found = 0;
+            int first = minDuration == Long.MIN_VALUE ? 0 : calls.firstLongerThan(minDuration - 1);
+            int last = minDuration > maxDuration ? first
+                    : maxDuration == Long.MAX_VALUE ? calls.count() : calls.firstLongerThan(maxDuration);
+            for (int call = last - 1; call >= first && found < limit; call--) {
+                int depth = calls.depth(call);
+                long start = calls.start(call);
+                if (depth >= minDepth && depth <= maxDepth && start >= from && start < to) {
+                    matches.add(new Match(tree, calls.node(call), depth, start, calls.duration(call)));
+                    found++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    private List<Match> walk(CallTree tree) {
+        List<Match> matches = new ArrayList<>();
+        if (!tree.iterator().hasNext()) {
+            return matches;
+        }
+        // the iterators of children of the current path
+        Deque<Iterator<CallTree.Node>> iterators = new ArrayDeque<>();
+        List<CallTree.Node> path = new ArrayList<>();
+        CallTree.Node root = tree.iterator().next();
+        visit(root, path, matches);
+        iterators.push(root.getChildren().iterator());
+        while (!iterators.isEmpty()) {
+            if (!iterators.peek().hasNext()) {
+                iterators.pop();
+                path.remove(path.size() - 1);
+                continue;
+            }
+            CallTree.Node node = iterators.peek().next();
+            visit(node, path, matches);
+            if (path.size() <= maxDepth) {
+                iterators.push(node.getChildren().iterator());
+            } else {
+                path.remove(path.size() - 1);
+            }
+        }
+        return matches;
+    }
+
+    // Adds the node to the path and to the matches if it matches
+    private void visit(CallTree.Node node, List<CallTree.Node> path, List<Match> matches) {
+        path.add(node);
+        int depth = path.size() - 1;
+        long start = node.getStartCallTime();
+        long duration = node.getEndCallTime() == -1 ? -1 : node.getEndCallTime() - start;
+        if ((method == null || method.equals(node.getFunctionName()))
+                && duration >= minDuration && duration <= maxDuration
+                && depth >= minDepth && depth <= maxDepth && start >= from && start < to) {
+            matches.add(new Match(new ArrayList<>(path), depth, start, duration));
+        }
+    }
+
+    /**
+     * The matching call. The nodes of calls found by the index are decoded only by {@link #getNode()} and
+     * {@link #getPath()}.
+     */
+    public static class Match {
+        private final MappedCallTree tree;
+        private final int index;
+        private List<CallTree.Node> path;
+        private final int depth;
+        private final long startCallTime, duration;
+
+        private Match(MappedCallTree tree, int index, int depth, long startCallTime, long duration) {
+            this.tree = tree;
+            this.index = index;
+            this.depth = depth;
+            this.startCallTime = startCallTime;
+            this.duration = duration;
+        }
+
+        private Match(List<CallTree.Node> path, int depth, long startCallTime, long duration) {
+            this(null, -1, depth, startCallTime, duration);
+            this.path = Collections.unmodifiableList(path);
+        }
+
+        public CallTree.Node getNode() {
+            return getPath().get(depth);
+        }
+
+        // Returns the nodes from the root to the matching node
+        public List<CallTree.Node> getPath() {
+            if (path == null) {
+                path = Collections.unmodifiableList(tree.path(index));
+            }
+            return path;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public long getStartCallTime() {
+            return startCallTime;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (CallTree.Node node : getPath().subList(1, depth + 1)) {
+                builder.append(builder.length() == 0 ? "" : " > ").append(node.getName());
+            }
+            return builder.append(": ").append(duration == -1 ? "unfinished" : duration + " ns").toString();
+        }
+    }
+}
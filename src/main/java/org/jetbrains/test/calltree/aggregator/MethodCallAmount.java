@@ -1,16 +1,30 @@
 package org.jetbrains.test.calltree.aggregator;
 
 import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.SymbolTable;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class MethodCallAmount {
     public static Map<String, Integer> execute(CallTree tree) {
+        // amounts are accumulated by function ids, the names are resolved only for the result
+        // the amounts are scaled by the sampling weights of nodes
+        long[] amounts = new long[SymbolTable.size()];
+        for (CallTree.Node node : tree) {
+            int id = node.getFunctionId();
+            if (id >= amounts.length) {
+                amounts = Arrays.copyOf(amounts, Math.max(id + 1, amounts.length * 2));
+            }
+            amounts[id] += node.getEstimatedCallCount();
+        }
         HashMap<String, Integer> res = new HashMap<>();
-        tree.forEach(node -> res.merge(node.getFunctionName(), 1,
-                (k, v) -> k + v
-        ));
+        for (int id = 0; id < amounts.length; id++) {
+            if (amounts[id] != 0) {
+                res.put(SymbolTable.name(id), (int) Math.min(amounts[id], Integer.MAX_VALUE));
+            }
+        }
         return res;
     }
 }
@@ -0,0 +1,113 @@
+package org.jetbrains.test.calltree.aggregator;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.OverheadCalibration;
+import org.jetbrains.test.calltree.SymbolTable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Computes the inclusive and self times of methods with the recording overhead subtracted (see
+ * {@link OverheadCalibration}). The times are scaled by the sampling weights of nodes like in {@link MethodCallTime}.
+ */
+public class MethodCallCorrectedTime {
+    public static Map<String, Times> execute(CallTree tree) {
+        return execute(tree, OverheadCalibration.get());
+    }
+
+    // The nodes are visited in post-order, the stack of children iterators is used instead of recursion, so every
+    // node gets the amount of nested calls and the corrected time of children. The times are accumulated by function
+    // ids like in MethodCallTime, the names are resolved only for the result.
+    public static Map<String, Times> execute(CallTree tree, OverheadCalibration calibration) {
+        Map<String, Times> res = new HashMap<>();
+        Iterator<CallTree.Node> nodes = tree.iterator();
+        if (!nodes.hasNext()) {
+            return res;
+        }
+        long[] inclusiveTimes = new long[SymbolTable.size()];
+        long[] selfTimes = new long[inclusiveTimes.length];
+        long[] corrections = new long[inclusiveTimes.length];
+        boolean[] called = new boolean[inclusiveTimes.length];
+        Deque<Frame> path = new ArrayDeque<>();
+        path.push(new Frame(nodes.next()));
+        while (!path.isEmpty()) {
+            Frame frame = path.peek();
+            if (frame.children.hasNext()) {
+                path.push(new Frame(frame.children.next()));
+                continue;
+            }
+            path.pop();
+            CallTree.Node node = frame.node;
+            long calls = node.getEstimatedCallCount();
+            long time = node.getEstimatedExecutionTime();
+            long inclusive = Math.max(0, time - calibration.correction(calls, frame.nestedCalls));
+            int id = node.getFunctionId();
+            if (id >= inclusiveTimes.length) {
+                int capacity = Math.max(id + 1, inclusiveTimes.length * 2);
+                inclusiveTimes = Arrays.copyOf(inclusiveTimes, capacity);
+                selfTimes = Arrays.copyOf(selfTimes, capacity);
+                corrections = Arrays.copyOf(corrections, capacity);
+                called = Arrays.copyOf(called, capacity);
+            }
+            inclusiveTimes[id] += inclusive;
+            selfTimes[id] += Math.max(0, inclusive - frame.childrenTime);
+            corrections[id] += time - inclusive;
+            called[id] = true;
+            Frame parent = path.peek();
+            if (parent != null) {
+                parent.nestedCalls += calls + frame.nestedCalls;
+                parent.childrenTime += inclusive;
+            }
+        }
+        for (int id = 0; id < inclusiveTimes.length; id++) {
+            if (called[id]) {
+                res.put(SymbolTable.name(id), new Times(inclusiveTimes[id], selfTimes[id], corrections[id]));
+            }
+        }
+        return res;
+    }
+
+    private static class Frame {
+        private final CallTree.Node node;
+        private final Iterator<CallTree.Node> children;
+        private long nestedCalls, childrenTime;
+
+        Frame(CallTree.Node node) {
+            this.node = node;
+            this.children = node.getChildren().iterator();
+        }
+    }
+
+    // The corrected times of all calls of the method and the amount subtracted from their measured time
+    public static class Times {
+        private final long inclusiveTime, selfTime, correction;
+
+        private Times(long inclusiveTime, long selfTime, long correction) {
+            this.inclusiveTime = inclusiveTime;
+            this.selfTime = selfTime;
+            this.correction = correction;
+        }
+
+        public long getInclusiveTime() {
+            return inclusiveTime;
+        }
+
+        public long getSelfTime() {
+            return selfTime;
+        }
+
+        public long getCorrection() {
+            return correction;
+        }
+
+        @Override
+        public String toString() {
+            return "inclusive " + inclusiveTime + ", self " + selfTime + ", correction " + correction;
+        }
+    }
+}
@@ -1,16 +1,45 @@
 package org.jetbrains.test.calltree.aggregator;
 
 import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.OverheadCalibration;
+import org.jetbrains.test.calltree.SymbolTable;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class MethodCallTime {
     public static Map<String, Long> execute(CallTree tree) {
+        // times are accumulated by function ids, the names are resolved only for the result, the times are scaled by
+        // the sampling weights of nodes
+        long[] times = new long[SymbolTable.size()];
+        boolean[] called = new boolean[times.length];
+        for (CallTree.Node node : tree) {
+            int id = node.getFunctionId();
+            if (id >= times.length) {
+                times = Arrays.copyOf(times, Math.max(id + 1, times.length * 2));
+                called = Arrays.copyOf(called, times.length);
+            }
+            times[id] += node.getEstimatedExecutionTime();
+            called[id] = true;
+        }
         HashMap<String, Long> res = new HashMap<>();
-        tree.forEach(node -> res.merge(node.getFunctionName(),
-                node.executionTime(),
-                (vOld, delta) -> vOld + delta));
+        for (int id = 0; id < times.length; id++) {
+            if (called[id]) {
+                res.put(SymbolTable.name(id), times[id]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the inclusive times of methods without the recording overhead of the given calibration, see
+     * {@link MethodCallCorrectedTime}.
+     */
+    public static Map<String, Long> execute(CallTree tree, OverheadCalibration calibration) {
+        Map<String, Long> res = new HashMap<>();
+        MethodCallCorrectedTime.execute(tree, calibration).forEach((name, times) ->
+                res.put(name, times.getInclusiveTime()));
         return res;
     }
 }
@@ -0,0 +1,30 @@
+package org.jetbrains.test.calltree.aggregator;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.LatencyHistogram;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges the latency histograms of methods recorded by the given trees (see
+ * {@link CallTree#setLatencyHistograms(boolean)}), so the percentiles are computed over the calls of all threads.
+ */
+public class MethodLatency {
+    public static Map<String, LatencyHistogram> execute(CallTree tree) {
+        return execute(Collections.singletonList(tree));
+    }
+
+    public static Map<String, LatencyHistogram> execute(Collection<CallTree> trees) {
+        Map<String, LatencyHistogram> res = new HashMap<>();
+        for (CallTree tree : trees) {
+            tree.getLatencyHistograms().forEach((method, histogram) -> res.merge(method, histogram, (merged, next) -> {
+                merged.merge(next);
+                return merged;
+            }));
+        }
+        return res;
+    }
+}
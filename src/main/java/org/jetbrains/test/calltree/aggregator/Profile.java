@@ -0,0 +1,139 @@
+package org.jetbrains.test.calltree.aggregator;
+
+import org.jetbrains.test.calltree.SymbolTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Statistics of methods collected by {@link ProfileAggregator}: the amount of calls, the inclusive and self time, the
+ * same times without the recording overhead and the minimal and maximal time of a call. The statistics are kept in
+ * primitive arrays indexed by the ids of method names in {@link SymbolTable}, the amounts and times are scaled by the
+ * sampling weights of nodes.
+ */
+public class Profile {
+    private long[] counts, inclusiveTimes, selfTimes, correctedInclusiveTimes, correctedSelfTimes, minTimes, maxTimes;
+
+    Profile() {
+        this(SymbolTable.size());
+    }
+
+    private Profile(int capacity) {
+        counts = new long[capacity];
+        inclusiveTimes = new long[capacity];
+        selfTimes = new long[capacity];
+        correctedInclusiveTimes = new long[capacity];
+        correctedSelfTimes = new long[capacity];
+        minTimes = new long[capacity];
+        maxTimes = new long[capacity];
+        Arrays.fill(minTimes, Long.MAX_VALUE);
+    }
+
+    // Adds the calls of the method represented by one node, the min and max times are ignored if they are negative
+    void add(int id, long count, long inclusiveTime, long selfTime, long correctedInclusiveTime,
+             long correctedSelfTime, long minTime, long maxTime) {
+        if (id >= counts.length) {
+            grow(Math.max(id + 1, counts.length * 2));
+        }
+        counts[id] += count;
+        inclusiveTimes[id] += inclusiveTime;
+        selfTimes[id] += selfTime;
+        correctedInclusiveTimes[id] += correctedInclusiveTime;
+        correctedSelfTimes[id] += correctedSelfTime;
+        if (minTime >= 0) {
+            minTimes[id] = Math.min(minTimes[id], minTime);
+            maxTimes[id] = Math.max(maxTimes[id], maxTime);
+        }
+    }
+
+    /**
+     * Adds the statistics of the given profile to this one.
+     */
+    public void merge(Profile other) {
+        if (other.counts.length > counts.length) {
+            grow(other.counts.length);
+        }
+        for (int id = 0; id < other.counts.length; id++) {
+            if (other.counts[id] != 0) {
+                add(id, other.counts[id], other.inclusiveTimes[id], other.selfTimes[id],
+                        other.correctedInclusiveTimes[id], other.correctedSelfTimes[id],
+                        other.minTimes[id] == Long.MAX_VALUE ? -1 : other.minTimes[id], other.maxTimes[id]);
+            }
+        }
+    }
+
+    private void grow(int capacity) {
+        int size = counts.length;
+        counts = Arrays.copyOf(counts, capacity);
+        inclusiveTimes = Arrays.copyOf(inclusiveTimes, capacity);
+        selfTimes = Arrays.copyOf(selfTimes, capacity);
+        correctedInclusiveTimes = Arrays.copyOf(correctedInclusiveTimes, capacity);
+        correctedSelfTimes = Arrays.copyOf(correctedSelfTimes, capacity);
+        minTimes = Arrays.copyOf(minTimes, capacity);
+        maxTimes = Arrays.copyOf(maxTimes, capacity);
+        Arrays.fill(minTimes, size, capacity, Long.MAX_VALUE);
+    }
+
+    // Returns the names of all called methods
+    public List<String> getMethods() {
+        List<String> methods = new ArrayList<>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] != 0) {
+                methods.add(SymbolTable.name(id));
+            }
+        }
+        return methods;
+    }
+
+    public long getCallCount(String method) {
+        int id = id(method);
+        return id == -1 ? 0 : counts[id];
+    }
+
+    // Returns the total time of calls including the time of nested calls
+    public long getInclusiveTime(String method) {
+        int id = id(method);
+        return id == -1 ? 0 : inclusiveTimes[id];
+    }
+
+    // Returns the total time of calls excluding the time of nested calls
+    public long getSelfTime(String method) {
+        int id = id(method);
+        return id == -1 ? 0 : selfTimes[id];
+    }
+
+    // Returns the inclusive time without the recording overhead, equal to the inclusive time if it wasn't calibrated
+    public long getCorrectedInclusiveTime(String method) {
+        int id = id(method);
+        return id == -1 ? 0 : correctedInclusiveTimes[id];
+    }
+
+    // Returns the self time without the recording overhead, equal to the self time if it wasn't calibrated
+    public long getCorrectedSelfTime(String method) {
+        int id = id(method);
+        return id == -1 ? 0 : correctedSelfTimes[id];
+    }
+
+    // Returns the minimal time of the finished call, 0 if there is no finished call
+    public long getMinTime(String method) {
+        int id = id(method);
+        return id == -1 || minTimes[id] == Long.MAX_VALUE ? 0 : minTimes[id];
+    }
+
+    // Returns the maximal time of the finished call, 0 if there is no finished call
+    public long getMaxTime(String method) {
+        int id = id(method);
+        return id == -1 ? 0 : maxTimes[id];
+    }
+
+    public long getMeanTime(String method) {
+        int id = id(method);
+        return id == -1 || counts[id] == 0 ? 0 : inclusiveTimes[id] / counts[id];
+    }
+
+    private int id(String method) {
+        int id = SymbolTable.find(method);
+        return id < counts.length ? id : -1;
+    }
+}
@@ -0,0 +1,274 @@
+package org.jetbrains.test.calltree.aggregator;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.OverheadCalibration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Collects the {@link Profile} of all methods of the given trees in one pass. The self time of the node is its time
+ * without the time of its children, so the trees and their subtrees are processed in parallel on the fork-join pool.
+ * The times without the recording overhead (see {@link OverheadCalibration}) depend on the amount of nested calls of
+ * the node, so every subtree gives the amount of its calls and the corrected time of its root to the parent node.
+ * Every worker thread accumulates into its own profile and these profiles are merged at the end, so nothing is shared
+ * while walking the trees.
+ */
+public class ProfileAggregator {
+    // the subtree is given to the other task only while there are less queued tasks than this
+    private static final int SURPLUS_TASKS = 3;
+
+    private final Map<Thread, Profile> profiles = new ConcurrentHashMap<>();
+    // the single worker would only run its own forked tasks, so subtrees are forked only if there are more workers
+    private final boolean parallel;
+    private final OverheadCalibration calibration;
+
+    private ProfileAggregator(ForkJoinPool pool, OverheadCalibration calibration) {
+        parallel = pool.getParallelism() > 1;
+        this.calibration = calibration;
+    }
+
+    public static Profile execute(CallTree tree) {
+        return execute(Collections.singletonList(tree));
+    }
+
+    public static Profile execute(Collection<CallTree> trees) {
+        return execute(trees, ForkJoinPool.commonPool());
+    }
+
+    public static Profile execute(Collection<CallTree> trees, ForkJoinPool pool) {
+        return execute(trees, pool, OverheadCalibration.NONE);
+    }
+
+    /**
+     * Collects the profile, which corrected times are reduced by the overhead of the given calibration.
+     */
+    public static Profile execute(Collection<CallTree> trees, ForkJoinPool pool, OverheadCalibration calibration) {
+        ProfileAggregator aggregator = new ProfileAggregator(pool, calibration);
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<SubtreeTask> tasks = new ArrayList<>();
+                for (CallTree tree : trees) {
+                    Iterator<CallTree.Node> nodes = tree.iterator();
+                    if (nodes.hasNext()) {
+                        tasks.add(aggregator.new SubtreeTask(nodes.next()));
+                    }
+                }
+                invokeAll(tasks);
+            }
+        });
+        Profile result = new Profile();
+        for (Profile profile : aggregator.profiles.values()) {
+            result.merge(profile);
+        }
+        return result;
+    }
+
+    private Profile workerProfile() {
+        return profiles.computeIfAbsent(Thread.currentThread(), thread -> new Profile());
+    }
+
+    private class SubtreeTask extends RecursiveAction {
+        private final CallTree.Node root;
+        // the amount of calls in the subtree and the corrected time of its root, set when walkCorrected() is done
+        private long calls, correctedTime;
+
+        // the path from the root to the current node with the state of every node on it
+        private CallTree.Node[] nodes = new CallTree.Node[64];
+        private int[] nextChildren = new int[64];
+        private long[] childrenTimes = new long[64], correctedChildrenTimes = new long[64], nestedCalls = new long[64];
+        private Pending[] pendings = new Pending[64];
+        private int depth;
+
+        SubtreeTask(CallTree.Node root) {
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            if (calibration == OverheadCalibration.NONE) {
+                walkMeasured();
+            } else {
+                walkCorrected();
+            }
+        }
+
+        // Walks the subtree by the explicit stack, the children with their own children are forked while the pool has
+        // not enough queued tasks. Without calibration the corrected times are the measured ones, so the nodes are
+        // walked in pre-order without counting nested calls, which takes about 30% less time than walkCorrected().
+        private void walkMeasured() {
+            Profile profile = workerProfile();
+            List<SubtreeTask> forked = new ArrayList<>();
+            Deque<CallTree.Node> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                CallTree.Node node = stack.pop();
+                long time = node.getEstimatedExecutionTime();
+                long childrenTime = 0;
+                for (int i = 0, count = node.getChildCount(); i < count; i++) {
+                    CallTree.Node child = node.getChild(i);
+                    childrenTime += child.getEstimatedExecutionTime();
+                    if (parallel && child.getChildCount() != 0 && getSurplusQueuedTaskCount() < SURPLUS_TASKS) {
+                        SubtreeTask task = new SubtreeTask(child);
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        stack.push(child);
+                    }
+                }
+                long selfTime = Math.max(0, time - childrenTime);
+                boolean finished = node.getEndCallTime() != -1;
+                profile.add(node.getFunctionId(), node.getEstimatedCallCount(), time, selfTime, time, selfTime,
+                        finished ? node.getMinExecutionTime() : -1, node.getMaxExecutionTime());
+            }
+            for (ForkJoinTask<?> task : forked) {
+                task.join();
+            }
+        }
+
+        // Walks the subtree in post-order by the explicit stack, the children with their own children are forked while
+        // the pool has not enough queued tasks. The nodes waiting for the forked tasks are finished after the walk, so
+        // the walk never waits for the other workers.
+        private void walkCorrected() {
+            Profile profile = workerProfile();
+            List<Pending> finishing = new ArrayList<>();
+            push(root);
+            while (true) {
+                int top = depth - 1;
+                CallTree.Node node = nodes[top];
+                // the leaves are added right away, only the children with their own children are walked
+                CallTree.Node child = null;
+                int next = nextChildren[top];
+                long childrenTime = 0, leafCalls = 0, correctedLeavesTime = 0;
+                for (int count = node.getChildCount(); next < count; ) {
+                    CallTree.Node candidate = node.getChild(next++);
+                    childrenTime += candidate.getEstimatedExecutionTime();
+                    if (candidate.getChildCount() != 0) {
+                        child = candidate;
+                        break;
+                    }
+                    leafCalls += candidate.getEstimatedCallCount();
+                    correctedLeavesTime += add(profile, candidate, 0, 0, 0);
+                }
+                nextChildren[top] = next;
+                childrenTimes[top] += childrenTime;
+                nestedCalls[top] += leafCalls;
+                correctedChildrenTimes[top] += correctedLeavesTime;
+                if (child != null) {
+                    if (parallel && getSurplusQueuedTaskCount() < SURPLUS_TASKS) {
+                        SubtreeTask task = new SubtreeTask(child);
+                        task.fork();
+                        pending(top).tasks.add(task);
+                    } else {
+                        push(child);
+                    }
+                    continue;
+                }
+                Pending pending = pendings[top];
+                if (pending != null) {
+                    pending.childrenTime = childrenTimes[top];
+                    pending.nestedCalls += nestedCalls[top];
+                    pending.correctedChildrenTime += correctedChildrenTimes[top];
+                    pending.parent = top == 0 ? null : pending(top - 1);
+                    finishing.add(pending);
+                } else {
+                    long corrected = add(profile, node, childrenTimes[top], nestedCalls[top],
+                            correctedChildrenTimes[top]);
+                    if (top == 0) {
+                        calls = node.getEstimatedCallCount() + nestedCalls[top];
+                        correctedTime = corrected;
+                    } else {
+                        nestedCalls[top - 1] += node.getEstimatedCallCount() + nestedCalls[top];
+                        correctedChildrenTimes[top - 1] += corrected;
+                    }
+                }
+                nodes[top] = null;
+                pendings[top] = null;
+                depth = top;
+                if (top == 0) {
+                    break;
+                }
+            }
+            // the pending nodes are in post-order, so every node is finished before its parent
+            for (Pending pending : finishing) {
+                for (SubtreeTask task : pending.tasks) {
+                    task.join();
+                    pending.nestedCalls += task.calls;
+                    pending.correctedChildrenTime += task.correctedTime;
+                }
+                long corrected = add(profile, pending.node, pending.childrenTime, pending.nestedCalls,
+                        pending.correctedChildrenTime);
+                long subtreeCalls = pending.node.getEstimatedCallCount() + pending.nestedCalls;
+                if (pending.parent == null) {
+                    calls = subtreeCalls;
+                    correctedTime = corrected;
+                } else {
+                    pending.parent.nestedCalls += subtreeCalls;
+                    pending.parent.correctedChildrenTime += corrected;
+                }
+            }
+        }
+
+        // Adds the node to the profile, returns its corrected time
+        private long add(Profile profile, CallTree.Node node, long childrenTime, long nestedCalls,
+                         long correctedChildrenTime) {
+            long count = node.getEstimatedCallCount();
+            long time = node.getEstimatedExecutionTime();
+            long corrected = Math.max(0, time - calibration.correction(count, nestedCalls));
+            boolean finished = node.getEndCallTime() != -1;
+            profile.add(node.getFunctionId(), count, time, Math.max(0, time - childrenTime),
+                    corrected, Math.max(0, corrected - correctedChildrenTime),
+                    finished ? node.getMinExecutionTime() : -1, node.getMaxExecutionTime());
+            return corrected;
+        }
+
+        // Returns the pending state of the node on the path, the node waits for the forked tasks or pending children
+        private Pending pending(int depth) {
+            if (pendings[depth] == null) {
+                pendings[depth] = new Pending(nodes[depth]);
+            }
+            return pendings[depth];
+        }
+
+        private void push(CallTree.Node node) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+                childrenTimes = Arrays.copyOf(childrenTimes, depth * 2);
+                correctedChildrenTimes = Arrays.copyOf(correctedChildrenTimes, depth * 2);
+                nestedCalls = Arrays.copyOf(nestedCalls, depth * 2);
+                pendings = Arrays.copyOf(pendings, depth * 2);
+            }
+            nodes[depth] = node;
+            nextChildren[depth] = 0;
+            childrenTimes[depth] = 0;
+            correctedChildrenTimes[depth] = 0;
+            nestedCalls[depth] = 0;
+            depth++;
+        }
+    }
+
+    // The node finished after the walk of its task, when the results of the forked subtrees are known
+    private static class Pending {
+        private final CallTree.Node node;
+        private final List<SubtreeTask> tasks = new ArrayList<>();
+        private Pending parent;
+        private long childrenTime, nestedCalls, correctedChildrenTime;
+
+        Pending(CallTree.Node node) {
+            this.node = node;
+        }
+    }
+}
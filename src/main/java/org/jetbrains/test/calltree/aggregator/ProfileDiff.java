@@ -0,0 +1,156 @@
+package org.jetbrains.test.calltree.aggregator;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.SymbolTable;
+import org.jetbrains.test.calltree.utils.PathTable;
+import org.jetbrains.test.calltree.utils.PathWalker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Compares two runs of the application by calling context paths. The calls of all trees of the run are merged by the
+ * path of method names from the thread root, the root itself is skipped, since the names and ids of threads differ
+ * between runs. Both runs intern their paths into the same {@link PathTable}, so the aligned paths get the same id
+ * and the statistics are compared by index without building the paths. The amounts and times are scaled by the
+ * sampling weights of nodes.
+ */
+public class ProfileDiff {
+    private final PathTable paths = new PathTable();
+    private final Run before = new Run(), after = new Run();
+    private final PathWalker walker = new PathWalker();
+
+    private ProfileDiff() {
+    }
+
+    public static List<PathDelta> execute(CallTree before, CallTree after) {
+        return execute(Collections.singletonList(before), Collections.singletonList(after));
+    }
+
+    /**
+     * Returns the changed paths ranked by impact: by the absolute change of the self time, the paths with the same
+     * change of self time are ranked by the absolute change of the inclusive time. The self time is used first, since
+     * the change of inclusive time is repeated by all callers of the changed method.
+     */
+    public static List<PathDelta> execute(Collection<CallTree> before, Collection<CallTree> after) {
+        ProfileDiff diff = new ProfileDiff();
+        for (CallTree tree : before) {
+            diff.add(tree, diff.before);
+        }
+        for (CallTree tree : after) {
+            diff.add(tree, diff.after);
+        }
+        List<PathDelta> deltas = new ArrayList<>();
+        for (int path = 0; path < diff.paths.size(); path++) {
+            PathDelta delta = diff.new PathDelta(path);
+            if (delta.getCallCountDelta() != 0 || delta.getInclusiveTimeDelta() != 0 || delta.getSelfTimeDelta() != 0) {
+                deltas.add(delta);
+            }
+        }
+        deltas.sort(Comparator.comparingLong((PathDelta delta) -> Math.abs(delta.getSelfTimeDelta()))
+                .thenComparingLong(delta -> Math.abs(delta.getInclusiveTimeDelta()))
+                .reversed());
+        return deltas;
+    }
+
+    private void add(CallTree tree, Run run) {
+        if (!tree.iterator().hasNext()) {
+            return;
+        }
+        CallTree.Node root = tree.iterator().next();
+        for (int i = 0; i < root.getChildCount(); i++) {
+            walker.walk(paths, root.getChild(i), PathTable.ROOT,
+                    (path, node, time, selfTime) -> run.add(path, node.getEstimatedCallCount(), time, selfTime));
+        }
+    }
+
+    // The statistics of paths of one run indexed by the ids of paths
+    private static class Run {
+        private long[] counts = new long[1024], inclusiveTimes = new long[1024], selfTimes = new long[1024];
+
+        void add(int path, long count, long inclusiveTime, long selfTime) {
+            if (path >= counts.length) {
+                int capacity = Math.max(path + 1, counts.length * 2);
+                counts = Arrays.copyOf(counts, capacity);
+                inclusiveTimes = Arrays.copyOf(inclusiveTimes, capacity);
+                selfTimes = Arrays.copyOf(selfTimes, capacity);
+            }
+            counts[path] += count;
+            inclusiveTimes[path] += inclusiveTime;
+            selfTimes[path] += selfTime;
+        }
+
+        long get(long[] values, int path) {
+            return path < values.length ? values[path] : 0;
+        }
+    }
+
+    // The statistics of one calling context path in both runs
+    public class PathDelta {
+        private final int path;
+
+        private PathDelta(int path) {
+            this.path = path;
+        }
+
+        // Returns the method names of the path from the outermost call
+        public List<String> getPath() {
+            return Arrays.stream(paths.functionIds(path)).mapToObj(SymbolTable::name).collect(Collectors.toList());
+        }
+
+        public long getCallCountBefore() {
+            return before.get(before.counts, path);
+        }
+
+        public long getCallCountAfter() {
+            return after.get(after.counts, path);
+        }
+
+        public long getCallCountDelta() {
+            return getCallCountAfter() - getCallCountBefore();
+        }
+
+        public long getInclusiveTimeBefore() {
+            return before.get(before.inclusiveTimes, path);
+        }
+
+        public long getInclusiveTimeAfter() {
+            return after.get(after.inclusiveTimes, path);
+        }
+
+        public long getInclusiveTimeDelta() {
+            return getInclusiveTimeAfter() - getInclusiveTimeBefore();
+        }
+
+        public long getSelfTimeBefore() {
+            return before.get(before.selfTimes, path);
+        }
+
+        public long getSelfTimeAfter() {
+            return after.get(after.selfTimes, path);
+        }
+
+        public long getSelfTimeDelta() {
+            return getSelfTimeAfter() - getSelfTimeBefore();
+        }
+
+        @Override
+        public String toString() {
+            return String.join(";", getPath())
+                    + ": calls " + getCallCountBefore() + " -> " + getCallCountAfter()
+                    + ", inclusive " + getInclusiveTimeBefore() + " -> " + getInclusiveTimeAfter()
+                    + " (" + signed(getInclusiveTimeDelta()) + ")"
+                    + ", self " + getSelfTimeBefore() + " -> " + getSelfTimeAfter()
+                    + " (" + signed(getSelfTimeDelta()) + ")";
+        }
+
+        private String signed(long value) {
+            return value > 0 ? "+" + value : Long.toString(value);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package org.jetbrains.test.calltree.aggregator;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.FileParseException;
+import org.jetbrains.test.calltree.SymbolTable;
+import org.jetbrains.test.calltree.utils.PathTable;
+import org.jetbrains.test.calltree.utils.PathWalker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Merges many tree files into one profile by calling context paths, the paths start from the root-level calls, since
+ * the roots are the threads. The files are read by the pool of workers, every worker takes the next file when it
+ * finishes the previous one and accumulates the paths into its own {@link PathTable}, so the workers share nothing
+ * but the queue of files. When the paths of the worker exceed its part of the memory budget, they are sorted and
+ * spilled to the run file. At the end the runs of all workers are merged by the k-way merge, the runs are merged in
+ * several passes if there are too many of them to keep open at once.
+ * <p>
+ * The result is written as one line per path sorted by path: the method names of the path from the outermost call
+ * separated by ';', the amount of calls, the inclusive time and the self time separated by spaces. The amounts and
+ * times are scaled by the sampling weights of nodes. The budget is checked after every root-level call, so it is
+ * exceeded while the paths of one root-level call don't fit into it.
+ */
+public class ProfileMerger {
+    // the estimated memory taken by the path and its statistics in the worker
+    private static final int PATH_SIZE = 64;
+    // the maximal amount of runs merged at once
+    private static final int MAX_FAN_IN = 64;
+
+    private final long memoryBudget;
+    private final int parallelism;
+    private final File spillDirectory;
+
+    /**
+     * @param memoryBudget   the memory in bytes taken by the paths of all workers
+     * @param parallelism    the amount of workers, should be positive
+     * @param spillDirectory the directory of run files or null for the default temporary-file directory
+     */
+    public ProfileMerger(long memoryBudget, int parallelism, File spillDirectory) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be positive");
+        }
+        this.memoryBudget = memoryBudget;
+        this.parallelism = parallelism;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Merges the given tree files and writes the result to the given writer.
+     *
+     * @return the amount of written paths
+     */
+    public long merge(Collection<File> files, Writer out) throws IOException, FileParseException {
+        Queue<File> pending = new ConcurrentLinkedQueue<>(files);
+        List<File> runs = Collections.synchronizedList(new ArrayList<>());
+        long maxPaths = Math.max(1, memoryBudget / parallelism / PATH_SIZE);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, task -> {
+            Thread thread = new Thread(task, "profile merge worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(executor.submit(() -> {
+                    new Worker(maxPaths, runs).run(pending);
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                join(worker);
+            }
+            List<File> merged = new ArrayList<>(runs);
+            while (merged.size() > MAX_FAN_IN) {
+                List<File> next = new ArrayList<>();
+                for (int i = 0; i < merged.size(); i += MAX_FAN_IN) {
+                    List<File> group = merged.subList(i, Math.min(i + MAX_FAN_IN, merged.size()));
+                    File run = createRun();
+                    runs.add(run);
+                    try (RunWriter writer = new RunWriter(run)) {
+                        mergeRuns(group, writer::write);
+                    }
+                    next.add(run);
+                }
+                merged = next;
+            }
+            return mergeRuns(merged, (key, count, inclusiveTime, selfTime) ->
+                    out.append(key.replace('\0', ';')).append(' ').append(Long.toString(count))
+                            .append(' ').append(Long.toString(inclusiveTime))
+                            .append(' ').append(Long.toString(selfTime)).append('\n'));
+        } finally {
+            executor.shutdownNow();
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    private static void join(Future<?> worker) throws IOException, FileParseException {
+        try {
+            worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging trees", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof FileParseException) {
+                throw (FileParseException) cause;
+            }
+            throw new IllegalStateException("Failed to merge trees", cause);
+        }
+    }
+
+    private File createRun() throws IOException {
+        File run = File.createTempFile("profile", ".run", spillDirectory);
+        run.deleteOnExit();
+        return run;
+    }
+
+    // Merges the sorted runs summing the statistics of equal paths, returns the amount of distinct paths
+    private static long mergeRuns(List<File> runs, RecordSink sink) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<>((a, b) -> a.key.compareTo(b.key));
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            long paths = 0;
+            while (!readers.isEmpty()) {
+                String key = readers.peek().key;
+                long count = 0, inclusiveTime = 0, selfTime = 0;
+                while (!readers.isEmpty() && readers.peek().key.equals(key)) {
+                    RunReader reader = readers.poll();
+                    count += reader.count;
+                    inclusiveTime += reader.inclusiveTime;
+                    selfTime += reader.selfTime;
+                    if (reader.next()) {
+                        readers.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                sink.write(key, count, inclusiveTime, selfTime);
+                paths++;
+            }
+            return paths;
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private interface RecordSink {
+        void write(String key, long count, long inclusiveTime, long selfTime) throws IOException;
+    }
+
+    // Accumulates the paths of the files taken by one worker, the nodes are walked by PathWalker like in ProfileDiff
+    private class Worker {
+        private final long maxPaths;
+        private final List<File> runs;
+        private PathTable paths = new PathTable();
+        private long[] counts = new long[1024], inclusiveTimes = new long[1024], selfTimes = new long[1024];
+        // the names of methods by their ids, so the names are taken from SymbolTable once by every worker
+        private String[] names = new String[1024];
+        private final PathWalker walker = new PathWalker();
+
+        Worker(long maxPaths, List<File> runs) {
+            this.maxPaths = maxPaths;
+            this.runs = runs;
+        }
+
+        void run(Queue<File> files) throws IOException, FileParseException {
+            for (File file = files.poll(); file != null; file = files.poll()) {
+                CallTree tree = CallTree.openFile(file.getPath());
+                if (!tree.iterator().hasNext()) {
+                    continue;
+                }
+                CallTree.Node root = tree.iterator().next();
+                for (int i = 0; i < root.getChildCount(); i++) {
+                    add(root.getChild(i));
+                    if (paths.size() >= maxPaths) {
+                        spill();
+                    }
+                }
+            }
+            if (paths.size() != 0) {
+                spill();
+            }
+        }
+
+        private void add(CallTree.Node rootLevelCall) {
+            walker.walk(paths, rootLevelCall, PathTable.ROOT, (path, node, time, selfTime) -> {
+                if (path >= counts.length) {
+                    int capacity = Math.max(path + 1, counts.length * 2);
+                    counts = Arrays.copyOf(counts, capacity);
+                    inclusiveTimes = Arrays.copyOf(inclusiveTimes, capacity);
+                    selfTimes = Arrays.copyOf(selfTimes, capacity);
+                }
+                counts[path] += node.getEstimatedCallCount();
+                inclusiveTimes[path] += time;
+                selfTimes[path] += selfTime;
+            });
+        }
+
+        // Writes the paths sorted by their keys to the new run and starts accumulating from scratch. The key is
+        // the names of the path separated by '\0', so the keys are ordered like the lists of names. The ids of paths
+        // are sorted by their parents and the cached names without building the keys, the key of every written
+        // path is built from the key of the previous one by replacing the names after their common prefix.
+        private void spill() throws IOException {
+            int size = paths.size();
+            int[] depths = new int[size];
+            int[] order = new int[size];
+            for (int path = 0; path < size; path++) {
+                int parent = paths.parent(path);
+                // the parent path is always added before its children
+                depths[path] = parent == PathTable.ROOT ? 0 : depths[parent] + 1;
+                order[path] = path;
+            }
+            sort(order, (a, b) -> compare(a, b, depths));
+            File run = createRun();
+            runs.add(run);
+            // the ids of the paths on the path of the previous key by depth and the ends of their names in the key
+            int[] keyPaths = new int[16];
+            int[] keyEnds = new int[16];
+            int keyDepth = -1;
+            StringBuilder key = new StringBuilder();
+            try (RunWriter writer = new RunWriter(run)) {
+                for (int path : order) {
+                    int depth = depths[path];
+                    if (depth >= keyPaths.length) {
+                        keyPaths = Arrays.copyOf(keyPaths, Math.max(depth + 1, keyPaths.length * 2));
+                        keyEnds = Arrays.copyOf(keyEnds, keyPaths.length);
+                    }
+                    // the common prefix is the deepest ancestor, which is on the path of the previous key
+                    int common = path;
+                    int commonDepth = depth;
+                    while (common != PathTable.ROOT && (commonDepth > keyDepth || keyPaths[commonDepth] != common)) {
+                        keyPaths[commonDepth] = common;
+                        common = paths.parent(common);
+                        commonDepth--;
+                    }
+                    key.setLength(commonDepth < 0 ? 0 : keyEnds[commonDepth]);
+                    for (int d = commonDepth + 1; d <= depth; d++) {
+                        if (d != 0) {
+                            key.append('\0');
+                        }
+                        key.append(name(paths.functionId(keyPaths[d])));
+                        keyEnds[d] = key.length();
+                    }
+                    keyDepth = depth;
+                    writer.write(key.toString(), counts[path], inclusiveTimes[path], selfTimes[path]);
+                }
+            }
+            paths = new PathTable();
+            Arrays.fill(counts, 0);
+            Arrays.fill(inclusiveTimes, 0);
+            Arrays.fill(selfTimes, 0);
+        }
+
+        // Compares the paths like their keys: by the names from the outermost call, the prefix goes first
+        private int compare(int a, int b, int[] depths) {
+            int depthA = depths[a], depthB = depths[b];
+            int x = a, y = b;
+            for (int depth = depthA; depth > depthB; depth--) {
+                x = paths.parent(x);
+            }
+            for (int depth = depthB; depth > depthA; depth--) {
+                y = paths.parent(y);
+            }
+            if (x == y) {
+                return Integer.compare(depthA, depthB);
+            }
+            // the paths of the same parent with the same method are the same path, so the ancestors meet
+            while (paths.parent(x) != paths.parent(y)) {
+                x = paths.parent(x);
+                y = paths.parent(y);
+            }
+            int result = name(paths.functionId(x)).compareTo(name(paths.functionId(y)));
+            if (result != 0) {
+                return result;
+            }
+            // the different methods with the same sanitized name, such paths are rare, so the names are listed
+            return compareNames(paths.functionIds(a), paths.functionIds(b));
+        }
+
+        private int compareNames(int[] a, int[] b) {
+            for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                int result = name(a[i]).compareTo(name(b[i]));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Integer.compare(a.length, b.length);
+        }
+
+        // The names are sanitized like by CollapsedStackExporter, so ';' separates the names in the result
+        private String name(int functionId) {
+            if (functionId >= names.length) {
+                names = Arrays.copyOf(names, Math.max(functionId + 1, names.length * 2));
+            }
+            if (names[functionId] == null) {
+                names[functionId] = SymbolTable.name(functionId)
+                        .replace(';', '_').replace('\n', '_').replace('\r', '_').replace('\0', '_');
+            }
+            return names[functionId];
+        }
+    }
+
+    // Sorts the ints by the comparator without boxing them. Merge sort is used, so the comparisons are
+    // O(n log n) in the worst case.
+    private static void sort(int[] values, IntBinaryOperator comparator) {
+        int[] buffer = new int[values.length];
+        for (int width = 1; width < values.length; width *= 2) {
+            for (int from = 0; from < values.length; from += 2 * width) {
+                int middle = Math.min(from + width, values.length), to = Math.min(from + 2 * width, values.length);
+                int i = from, j = middle, k = from;
+                while (i < middle && j < to) {
+                    buffer[k++] = comparator.applyAsInt(values[i], values[j]) <= 0 ? values[i++] : values[j++];
+                }
+                while (i < middle) {
+                    buffer[k++] = values[i++];
+                }
+                while (j < to) {
+                    buffer[k++] = values[j++];
+                }
+            }
+            System.arraycopy(buffer, 0, values, 0, values.length);
+        }
+    }
+
+    // The run file starts with the amount of records, every record is the key and the statistics of the path
+    private static class RunWriter implements AutoCloseable, RecordSink {
+        private final File file;
+        private final DataOutputStream out;
+        private int records;
+
+        RunWriter(File file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(0);
+        }
+
+        @Override
+        public void write(String key, long count, long inclusiveTime, long selfTime) throws IOException {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeLong(count);
+            out.writeLong(inclusiveTime);
+            out.writeLong(selfTime);
+            records++;
+        }
+
+        // the amount of records is written at the start of the file after all records
+        @Override
+        public void close() throws IOException {
+            out.close();
+            try (RandomAccessFile header = new RandomAccessFile(file, "rw")) {
+                header.writeInt(records);
+            }
+        }
+    }
+
+    private static class RunReader implements AutoCloseable {
+        private final DataInputStream in;
+        private int remaining;
+        private String key;
+        private long count, inclusiveTime, selfTime;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            remaining = in.readInt();
+        }
+
+        // Reads the next record, returns false if there are no more records
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            key = new String(bytes, StandardCharsets.UTF_8);
+            count = in.readLong();
+            inclusiveTime = in.readLong();
+            selfTime = in.readLong();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.jetbrains.test.calltree.export;
+
+import org.jetbrains.test.calltree.CallTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Exports trees in the Chrome Trace Event JSON format, which is shown as the timeline by chrome://tracing and
+ * Perfetto. Every added tree becomes the thread named by the root of the tree and every recorded call becomes the
+ * complete event with its start time and duration in microseconds. The unfinished calls are the begin events without
+ * the end. The events are written while the tree is iterated, so nothing but the current event is kept in memory.
+ * The measured times are written without subtracting {@link org.jetbrains.test.calltree.OverheadCalibration}, since
+ * the corrected durations would no longer fit the start times of nested calls on the timeline.
+ * <p>
+ * The nodes of {@link CallTree.RecordingMode#CALLING_CONTEXTS} trees span from the start of the first call to the
+ * end of the last one, the amount of merged calls is written to the arguments of the event.
+ */
+public class ChromeTraceExporter implements Closeable {
+    private static final int PID = 1;
+
+    private final Writer out;
+    private final StringBuilder event = new StringBuilder();
+    private int threads;
+    private boolean first = true;
+
+    // Starts the JSON document, the document is finished by close(), which doesn't close the writer
+    public ChromeTraceExporter(Writer out) throws IOException {
+        this.out = out;
+        out.write("{\"traceEvents\":[");
+    }
+
+    public static void export(Collection<CallTree> trees, Writer out) throws IOException {
+        try (ChromeTraceExporter exporter = new ChromeTraceExporter(out)) {
+            for (CallTree tree : trees) {
+                exporter.add(tree);
+            }
+        }
+    }
+
+    /**
+     * Writes the calls of the given tree as the events of the next thread.
+     */
+    public void add(CallTree tree) throws IOException {
+        Iterator<CallTree.Node> nodes = tree.iterator();
+        if (!nodes.hasNext()) {
+            return;
+        }
+        int tid = ++threads;
+        start("thread_name", "M", tid);
+        event.append(",\"args\":{\"name\":");
+        appendString(event, nodes.next().getName());
+        event.append("}}");
+        flush();
+        while (nodes.hasNext()) {
+            CallTree.Node node = nodes.next();
+            boolean finished = node.getEndCallTime() != -1;
+            start(node.getFunctionName(), finished ? "X" : "B", tid);
+            event.append(",\"ts\":");
+            appendMicros(event, node.getStartCallTime());
+            if (finished) {
+                event.append(",\"dur\":");
+                appendMicros(event, node.getEndCallTime() - node.getStartCallTime());
+            }
+            appendArguments(node);
+            event.append('}');
+            flush();
+        }
+    }
+
+    private void appendArguments(CallTree.Node node) {
+        String name = node.getName();
+        int length = node.getFunctionName().length();
+        boolean hasArguments = name.length() > length + 1;
+        if (!hasArguments && node.getCallCount() == 1 && node.getSampleWeight() == 1 && !node.isExceptional()) {
+            return;
+        }
+        event.append(",\"args\":{");
+        int mark = event.length();
+        if (hasArguments) {
+            event.append("\"arguments\":");
+            appendString(event, name.substring(length + 1, name.length() - 1));
+        }
+        if (node.getCallCount() != 1) {
+            event.append(event.length() == mark ? "" : ",").append("\"calls\":").append(node.getCallCount());
+        }
+        if (node.getSampleWeight() != 1) {
+            event.append(event.length() == mark ? "" : ",").append("\"weight\":").append(node.getSampleWeight());
+        }
+        if (node.isExceptional()) {
+            event.append(event.length() == mark ? "" : ",").append("\"exception\":true");
+        }
+        event.append('}');
+    }
+
+    private void start(String name, String phase, int tid) {
+        event.append(first ? "\n{\"name\":" : ",\n{\"name\":");
+        first = false;
+        appendString(event, name);
+        event.append(",\"ph\":\"").append(phase).append("\",\"pid\":").append(PID).append(",\"tid\":").append(tid);
+    }
+
+    private void flush() throws IOException {
+        out.append(event);
+        event.setLength(0);
+    }
+
+    // Finishes the JSON document and flushes the writer
+    @Override
+    public void close() throws IOException {
+        out.write("\n]}\n");
+        out.flush();
+    }
+
+    // The timestamps of the format are microseconds, the nanoseconds are kept as the fraction
+    private static void appendMicros(StringBuilder result, long nanos) {
+        if (nanos < 0) {
+            result.append('-');
+            nanos = -nanos;
+        }
+        long fraction = nanos % 1000;
+        result.append(nanos / 1000).append('.');
+        if (fraction < 100) {
+            result.append(fraction < 10 ? "00" : "0");
+        }
+        result.append(fraction);
+    }
+
+    private static void appendString(StringBuilder result, String value) {
+        result.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    result.append("\\\"");
+                    break;
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        result.append(c);
+                    }
+            }
+        }
+        result.append('"');
+    }
+}
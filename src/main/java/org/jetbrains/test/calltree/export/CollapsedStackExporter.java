@@ -0,0 +1,99 @@
+package org.jetbrains.test.calltree.export;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.OverheadCalibration;
+import org.jetbrains.test.calltree.SymbolTable;
+import org.jetbrains.test.calltree.utils.PathTable;
+import org.jetbrains.test.calltree.utils.PathWalker;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Exports trees in the collapsed stack format read by flame graph tools: every line is the stack of method names
+ * from the thread to the called method separated by semicolons and the self time of calls with this stack in
+ * nanoseconds. The identical stacks of all added trees are aggregated while the trees are walked, every distinct
+ * stack is kept in {@link PathTable} by the id of its parent stack and the method id, so the memory depends only on
+ * the amount of distinct stacks and not on the size of trees. The times are scaled by the sampling weights of nodes
+ * and may be reduced by the recording overhead (see {@link OverheadCalibration}).
+ */
+public class CollapsedStackExporter {
+    private final PathTable paths = new PathTable();
+    // the self times of paths indexed by their ids in the table
+    private long[] selfTimes = new long[1024];
+
+    private final PathWalker walker;
+
+    public CollapsedStackExporter() {
+        this(OverheadCalibration.NONE);
+    }
+
+    /**
+     * @param calibration the overhead subtracted from the times of calls before their self times are exported
+     */
+    public CollapsedStackExporter(OverheadCalibration calibration) {
+        walker = new PathWalker(calibration);
+    }
+
+    public static void export(Collection<CallTree> trees, Writer out) throws IOException {
+        export(trees, out, OverheadCalibration.NONE);
+    }
+
+    public static void export(Collection<CallTree> trees, Writer out, OverheadCalibration calibration)
+            throws IOException {
+        CollapsedStackExporter exporter = new CollapsedStackExporter(calibration);
+        for (CallTree tree : trees) {
+            exporter.add(tree);
+        }
+        exporter.writeTo(out);
+    }
+
+    /**
+     * Adds the stacks of the given tree. The tree is walked by {@link PathWalker}, so the stored trees mapped by
+     * {@link CallTree#mapFile(String)} are never decoded as a whole.
+     */
+    public void add(CallTree tree) {
+        Iterator<CallTree.Node> nodes = tree.iterator();
+        if (!nodes.hasNext()) {
+            return;
+        }
+        walker.walk(paths, nodes.next(), PathTable.ROOT, (path, node, time, selfTime) -> {
+            if (path >= selfTimes.length) {
+                selfTimes = Arrays.copyOf(selfTimes, Math.max(path + 1, selfTimes.length * 2));
+            }
+            selfTimes[path] += selfTime;
+        });
+    }
+
+    /**
+     * Writes the stacks with the positive self time in order of their first appearance.
+     */
+    public void writeTo(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int path = 0; path < paths.size(); path++) {
+            if (selfTimes[path] == 0) {
+                continue;
+            }
+            int[] stack = paths.functionIds(path);
+            line.setLength(0);
+            for (int i = 0; i < stack.length; i++) {
+                appendFrame(line, SymbolTable.name(stack[i]));
+                line.append(i + 1 == stack.length ? ' ' : ';');
+            }
+            line.append(selfTimes[path]).append('\n');
+            out.append(line);
+        }
+        out.flush();
+    }
+
+    // The separators of the format can't be escaped, so they are replaced in method names
+    private static void appendFrame(StringBuilder line, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            line.append(c == ';' || c == '\n' || c == '\r' ? '_' : c);
+        }
+    }
+}
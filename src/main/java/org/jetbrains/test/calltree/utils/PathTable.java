@@ -0,0 +1,94 @@
+package org.jetbrains.test.calltree.utils;
+
+import java.util.Arrays;
+
+/**
+ * Table of distinct calling context paths, every path gets the consecutive integer id in order of addition. The path
+ * is kept as the id of its parent path and the id of the last method, so adding the child of the known path takes
+ * one lookup by the pair of ints regardless of the path length. Open addressing is used, so looking up the already
+ * added path doesn't allocate.
+ */
+public class PathTable {
+    // the parent of the paths of length one
+    public static final int ROOT = -1;
+
+    private int[] parents = new int[1024];
+    private int[] functionIds = new int[1024];
+    // ids of paths increased by one, zero means the empty slot
+    private int[] slots = new int[2048];
+    private int size;
+
+    /**
+     * Returns the id of the path made of the given parent path and method adding it to the table if it is absent.
+     *
+     * @param parent the id of the parent path or {@link #ROOT}
+     */
+    public int intern(int parent, int functionId) {
+        int mask = slots.length - 1;
+        int slot = hash(parent, functionId) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (parents[id] == parent && functionIds[id] == functionId) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == parents.length) {
+            parents = Arrays.copyOf(parents, size * 2);
+            functionIds = Arrays.copyOf(functionIds, size * 2);
+        }
+        parents[size] = parent;
+        functionIds[size] = functionId;
+        slots[slot] = ++size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    // Returns the id of the parent path, ROOT for the paths of length one
+    public int parent(int id) {
+        return parents[id];
+    }
+
+    // Returns the id of the last method of the path
+    public int functionId(int id) {
+        return functionIds[id];
+    }
+
+    /**
+     * Returns the ids of methods of the path from the outermost one.
+     */
+    public int[] functionIds(int id) {
+        int length = 0;
+        for (int path = id; path != ROOT; path = parents[path]) {
+            length++;
+        }
+        int[] result = new int[length];
+        for (int path = id; path != ROOT; path = parents[path]) {
+            result[--length] = functionIds[path];
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hash(parents[id], functionIds[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int hash(int parent, int functionId) {
+        int h = parent * 0x9E3779B9 + functionId;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,91 @@
+package org.jetbrains.test.calltree.utils;
+
+import org.jetbrains.test.calltree.CallTree;
+import org.jetbrains.test.calltree.OverheadCalibration;
+
+import java.util.Arrays;
+
+/**
+ * Walks the calls of the tree by calling context paths interning every path into {@link PathTable}. The tree is
+ * walked by the explicit stack of the nodes on the path to the visited node with the index of the next child to
+ * visit, so the stack is bounded by the depth of the tree and not by its width, and the stored trees mapped by
+ * {@link CallTree#mapFile(String)} are never decoded as a whole. The paths are interned in pre-order, the children
+ * are visited in the order of calls. The times of nodes may be reduced by the recording overhead given by
+ * {@link OverheadCalibration}, the correction of the node depends on the amount of its nested calls, which is known
+ * when the node is visited in post-order. The walker is reused by one thread.
+ */
+public class PathWalker {
+    private final OverheadCalibration calibration;
+    private CallTree.Node[] nodes = new CallTree.Node[64];
+    private int[] paths = new int[64];
+    private int[] nextChildren = new int[64];
+    private long[] childrenTimes = new long[64];
+    private long[] nestedCalls = new long[64];
+    private int depth;
+
+    public PathWalker() {
+        this(OverheadCalibration.NONE);
+    }
+
+    /**
+     * @param calibration the overhead subtracted from the times given to visitors
+     */
+    public PathWalker(OverheadCalibration calibration) {
+        this.calibration = calibration;
+    }
+
+    /**
+     * Walks the given node with its descendants.
+     *
+     * @param parent the id of the path to the parent of the node or {@link PathTable#ROOT}
+     */
+    public void walk(PathTable table, CallTree.Node node, int parent, Visitor visitor) {
+        push(table, node, parent);
+        while (depth != 0) {
+            int top = depth - 1;
+            CallTree.Node current = nodes[top];
+            if (nextChildren[top] < current.getChildCount()) {
+                push(table, current.getChild(nextChildren[top]++), paths[top]);
+                continue;
+            }
+            long calls = current.getEstimatedCallCount();
+            long time = Math.max(0, current.getEstimatedExecutionTime()
+                    - calibration.correction(calls, nestedCalls[top]));
+            visitor.visited(paths[top], current, time, Math.max(0, time - childrenTimes[top]));
+            nodes[top] = null;
+            depth = top;
+            if (top != 0) {
+                childrenTimes[top - 1] += time;
+                nestedCalls[top - 1] += calls + nestedCalls[top];
+            }
+        }
+    }
+
+    private void push(PathTable table, CallTree.Node node, int parent) {
+        int path = table.intern(parent, node.getFunctionId());
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            paths = Arrays.copyOf(paths, depth * 2);
+            nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+            childrenTimes = Arrays.copyOf(childrenTimes, depth * 2);
+            nestedCalls = Arrays.copyOf(nestedCalls, depth * 2);
+        }
+        nodes[depth] = node;
+        paths[depth] = path;
+        nextChildren[depth] = 0;
+        childrenTimes[depth] = 0;
+        nestedCalls[depth] = 0;
+        depth++;
+    }
+
+    // Receives the nodes of the walked tree in post-order
+    public interface Visitor {
+        /**
+         * Called after all children of the node are visited.
+         *
+         * @param time     the estimated execution time of the node without the recording overhead, never negative
+         * @param selfTime the estimated time of the node not spent in its children, never negative
+         */
+        void visited(int path, CallTree.Node node, long time, long selfTime);
+    }
+}
@@ -0,0 +1,71 @@
+package org.jetbrains.test.calltree.utils;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * List kept in the circular array, so both adding to the end and removing from the start take the amortized constant
+ * time. The empty list doesn't allocate the array.
+ */
+public class RingList<E> extends AbstractList<E> implements RandomAccess {
+    private static final Object[] EMPTY = {};
+
+    // the capacity is always the power of two
+    private Object[] elements = EMPTY;
+    private int head, size;
+
+    @Override
+    public boolean add(E element) {
+        if (size == elements.length) {
+            grow();
+        }
+        elements[(head + size) & (elements.length - 1)] = element;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return (E) elements[(head + index) & (elements.length - 1)];
+    }
+
+    /**
+     * Removes and returns the first element.
+     *
+     * @throws NoSuchElementException if the list is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E removeFirst() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        E element = (E) elements[head];
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        modCount++;
+        return element;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        Object[] grown = new Object[Math.max(4, elements.length * 2)];
+        for (int i = 0; i < size; i++) {
+            grown[i] = elements[(head + i) & (elements.length - 1)];
+        }
+        Arrays.fill(elements, null);
+        elements = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,33 @@
+package org.jetbrains.test.profiller;
+
+import org.jetbrains.test.calltree.OverheadCalibration;
+
+/**
+ * Measures {@link OverheadCalibration} by the calls of the empty method woven by {@link TestAspect}, so the measured
+ * cost includes the cost of the advice. If the method isn't woven or its profiling is switched off by
+ * {@link ProfilingControl}, only the cost of recording the call to the tree is measured.
+ */
+public final class OverheadCalibrator {
+    private OverheadCalibrator() {
+    }
+
+    /**
+     * Returns the calibration measured once on the first call of this method.
+     */
+    public static OverheadCalibration get() {
+        return Holder.CALIBRATION;
+    }
+
+    public static OverheadCalibration calibrate() {
+        return OverheadCalibration.calibrate(OverheadCalibrator::emptyCall);
+    }
+
+    @Profiling(type = Profiling.NameType.OWN, ownName = "overhead calibration")
+    private static void emptyCall() {
+    }
+
+    // lazy initialization of the measured calibration
+    private static class Holder {
+        private static final OverheadCalibration CALIBRATION = calibrate();
+    }
+}
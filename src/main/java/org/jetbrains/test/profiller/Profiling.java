@@ -16,7 +16,24 @@ public @interface Profiling {
 
     String ownName() default "defaultName";
 
+    // The way of recording arguments of calls
+    ArgumentCapture arguments() default ArgumentCapture.FULL;
+
+    // The maximal length of recorded arguments for ArgumentCapture.TRUNCATED
+    int maxArgumentsLength() default 64;
+
     enum NameType {
         SHORT, MID, LONG, OWN
     }
+
+    /**
+     * {@code FULL} records {@code toString()} of all arguments, {@code NONE} doesn't record arguments,
+     * {@code TYPES} records the declared types of parameters, {@code IDENTITY_HASH} records identity hash codes
+     * of arguments, {@code TRUNCATED} records {@code toString()} of arguments cut to {@link #maxArgumentsLength()}
+     * chars, {@code LAZY} keeps the references to arguments and calls {@code toString()} once, when the tree is printed
+     * or stored first, the changes of arguments after that are not seen.
+     */
+    enum ArgumentCapture {
+        FULL, NONE, TYPES, IDENTITY_HASH, TRUNCATED, LAZY
+    }
 }
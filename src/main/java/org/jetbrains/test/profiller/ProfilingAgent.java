@@ -0,0 +1,210 @@
+package org.jetbrains.test.profiller;
+
+import org.aspectj.weaver.loadtime.Agent;
+import org.jetbrains.test.calltree.RollingDumpWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Java agent profiling the methods chosen at launch by the load-time weaving of {@link PatternProfilingAspect}:
+ * {@code -javaagent:profiler-agent.jar=include=com.example..*;exclude=com.example.generated..*;method=* *.handle*(..)}.
+ * The options are separated by ';' and may be repeated:
+ * <ul>
+ * <li>{@code include} and {@code exclude} are AspectJ type patterns of woven classes. The classes matching no
+ * include, when there are includes, or matching an exclude are not woven at all, so they are loaded as usual.
+ * The classes of the profiler and of AspectJ are always excluded.</li>
+ * <li>{@code method} is the AspectJ method pattern of profiled methods in woven classes, all methods by default.
+ * The pointcut designators and the operators {@code &&} and {@code ||} are rejected here.</li>
+ * <li>{@code pointcut} is the AspectJ pointcut expression of profiled join points in woven classes, e.g.
+ * {@code execution(* *(..)) && !execution(* *.toString())}, it is taken as is. The join points matching any
+ * method pattern or any pointcut are profiled.</li>
+ * <li>{@code config} is the config file of {@link ProfilingControl}, which is watched while the application runs.</li>
+ * <li>{@code output} is the directory, where {@link RollingDumpWriter} dumps the trees of all threads periodically
+ * and once more when the JVM shuts down. Nothing is written by default, the trees are available only through
+ * {@link org.jetbrains.test.calltree.CallTree}.</li>
+ * <li>{@code period} is the period of dumps to {@code output} in seconds, one minute by default.</li>
+ * <li>{@code verbose} makes the weaver report every woven join point.</li>
+ * </ul>
+ * The options are turned into {@code aop.xml} declaring the concrete aspect, the weaver of AspectJ is started with
+ * this file as its only configuration.
+ */
+public class ProfilingAgent {
+    static final String CONFIGURATION_PROPERTY = "org.aspectj.weaver.loadtime.configuration";
+    static final String ASPECT_NAME = "org.jetbrains.test.profiller.AgentProfilingAspect";
+    private static final Pattern POINTCUT_DESIGNATOR = Pattern.compile("\\s*!?\\s*@?(execution|call|within|withincode|"
+            + "args|this|target|cflow|cflowbelow|if|annotation|handler|get|set|initialization|preinitialization|"
+            + "staticinitialization|adviceexecution)\\s*\\(");
+    private static final String[] PROFILER_PACKAGES = {
+            "org.jetbrains.test.calltree..*", "org.jetbrains.test.profiller..*", "org.aspectj..*"
+    };
+
+    private ProfilingAgent() {
+    }
+
+    public static void premain(String options, Instrumentation instrumentation) throws IOException {
+        Options parsed = Options.parse(options);
+        File aopXml = File.createTempFile("profiler-aop", ".xml");
+        aopXml.deleteOnExit();
+        Files.write(aopXml.toPath(), parsed.toAopXml().getBytes(StandardCharsets.UTF_8));
+        System.setProperty(CONFIGURATION_PROPERTY, aopXml.toURI().toString());
+        if (parsed.config != null) {
+            ProfilingControl.watch(parsed.config, 1, TimeUnit.SECONDS);
+        }
+        if (parsed.output != null) {
+            startDumps(parsed);
+        }
+        Agent.premain(options, instrumentation);
+    }
+
+    // The last dump is written by the shutdown hook, so the calls after the last periodic dump are not lost
+    private static void startDumps(Options options) {
+        RollingDumpWriter writer = new RollingDumpWriter(options.output, "profile");
+        if (options.period > 0) {
+            writer.setPeriod(options.period, TimeUnit.SECONDS);
+        }
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Profiling agent failed to write the last dump to " + options.output + ": " + e);
+            }
+        }, "profile dump writer shutdown"));
+    }
+
+    /**
+     * Returns the content of {@code aop.xml} generated for the given options of the agent.
+     *
+     * @throws IllegalArgumentException if the options are malformed
+     */
+    public static String toAopXml(String options) {
+        return Options.parse(options).toAopXml();
+    }
+
+    // The parsed options of the agent
+    private static class Options {
+        private final List<String> includes = new ArrayList<>();
+        private final List<String> excludes = new ArrayList<>();
+        private final List<String> methods = new ArrayList<>();
+        private final List<String> pointcuts = new ArrayList<>();
+        private String config, output;
+        private long period;
+        private boolean verbose;
+
+        static Options parse(String options) {
+            Options parsed = new Options();
+            if (options == null) {
+                return parsed;
+            }
+            for (String option : options.split(";")) {
+                option = option.trim();
+                int i = option.indexOf('=');
+                String key = i == -1 ? option : option.substring(0, i).trim();
+                String value = i == -1 ? null : option.substring(i + 1).trim();
+                if (option.isEmpty()) {
+                    continue;
+                } else if (key.equals("verbose") && value == null) {
+                    parsed.verbose = true;
+                } else if (value == null || value.isEmpty()) {
+                    throw new IllegalArgumentException("Option " + key + " of profiling agent has no value");
+                } else if (key.equals("include")) {
+                    parsed.includes.add(value);
+                } else if (key.equals("exclude")) {
+                    parsed.excludes.add(value);
+                } else if (key.equals("method")) {
+                    if (!isMethodPattern(value)) {
+                        throw new IllegalArgumentException("Option method of profiling agent should be the method "
+                                + "pattern, the pointcut expression should be given by option pointcut: " + value);
+                    }
+                    parsed.methods.add(value);
+                } else if (key.equals("pointcut")) {
+                    parsed.pointcuts.add(value);
+                } else if (key.equals("config")) {
+                    parsed.config = value;
+                } else if (key.equals("output")) {
+                    parsed.output = value;
+                } else if (key.equals("period")) {
+                    parsed.period = parsePeriod(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option of profiling agent: " + key);
+                }
+            }
+            if (parsed.period != 0 && parsed.output == null) {
+                throw new IllegalArgumentException("Option period of profiling agent requires option output");
+            }
+            return parsed;
+        }
+
+        private static long parsePeriod(String value) {
+            try {
+                long period = Long.parseLong(value);
+                if (period > 0) {
+                    return period;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            throw new IllegalArgumentException("Option period of profiling agent should be the positive number of "
+                    + "seconds: " + value);
+        }
+
+        // The method pattern is wrapped in execution(), so the pointcut designators and the operators combining them
+        // would make the broken or the different pointcut
+        private static boolean isMethodPattern(String value) {
+            return !value.contains("&&") && !value.contains("||")
+                    && !POINTCUT_DESIGNATOR.matcher(value).lookingAt();
+        }
+
+        // Returns the pointcut of profiled methods in woven classes
+        String pointcut() {
+            if (methods.isEmpty() && pointcuts.isEmpty()) {
+                return "execution(* *(..))";
+            }
+            StringBuilder pointcut = new StringBuilder();
+            for (String method : methods) {
+                pointcut.append(pointcut.length() == 0 ? "" : " || ").append("execution(").append(method).append(')');
+            }
+            for (String expression : pointcuts) {
+                pointcut.append(pointcut.length() == 0 ? "" : " || ").append('(').append(expression).append(')');
+            }
+            return pointcut.toString();
+        }
+
+        String toAopXml() {
+            StringBuilder xml = new StringBuilder();
+            xml.append("<aspectj>\n");
+            xml.append("  <aspects>\n");
+            xml.append("    <concrete-aspect name=\"").append(ASPECT_NAME).append("\" extends=\"")
+                    .append(PatternProfilingAspect.class.getName()).append("\">\n");
+            xml.append("      <pointcut name=\"profiledMethods\" expression=\"").append(escape(pointcut()))
+                    .append("\"/>\n");
+            xml.append("    </concrete-aspect>\n");
+            xml.append("  </aspects>\n");
+            xml.append("  <weaver options=\"").append(verbose ? "-verbose -showWeaveInfo" : "-Xlint:ignore")
+                    .append("\">\n");
+            for (String include : includes) {
+                xml.append("    <include within=\"").append(escape(include)).append("\"/>\n");
+            }
+            for (String exclude : excludes) {
+                xml.append("    <exclude within=\"").append(escape(exclude)).append("\"/>\n");
+            }
+            for (String profilerPackage : PROFILER_PACKAGES) {
+                xml.append("    <exclude within=\"").append(profilerPackage).append("\"/>\n");
+            }
+            xml.append("  </weaver>\n");
+            xml.append("</aspectj>\n");
+            return xml.toString();
+        }
+
+        private static String escape(String value) {
+            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        }
+    }
+}
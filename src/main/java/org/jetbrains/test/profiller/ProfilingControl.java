@@ -0,0 +1,212 @@
+package org.jetbrains.test.profiller;
+
+import org.jetbrains.test.calltree.FileParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Turns profiling of the methods woven by {@link TestAspect} on and off at runtime. The global switch is checked by
+ * the {@code if()} pointcut before the advice, so the disabled profiling costs one read of the volatile flag and the
+ * branch. The rules enable or disable the methods by the glob ({@code *} matches any chars, {@code ?} matches one
+ * char) matched against the qualified name of the method ({@code org.example.Service.call}) or its name given by
+ * {@link Profiling}. The last matching rule wins, the methods matched by no rule are profiled. The rules are applied
+ * to every resolved method once when the rules change, so the disabled method costs the lookup of its join point and
+ * one more branch.
+ * <p>
+ * The settings may be also loaded from the config file, which replaces all settings set before and is reloaded when
+ * it changes if it is watched:
+ * <pre>
+ * # comments and empty lines are ignored
+ * profiling = off
+ * disable org.example.*
+ * enable org.example.Service.call
+ * </pre>
+ */
+public final class ProfilingControl {
+    private static volatile boolean enabled = true;
+    // the rules and the switches of resolved methods, they are guarded by the class lock
+    private static final List<Rule> rules = new ArrayList<>();
+    private static final List<Switch> switches = new ArrayList<>();
+
+    private static ScheduledExecutorService watcher;
+    private static ScheduledFuture<?> watch;
+    private static volatile Exception lastError;
+
+    private ProfilingControl() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns profiling of all methods on or off, the rules are kept while profiling is off.
+     */
+    public static void setEnabled(boolean enabled) {
+        ProfilingControl.enabled = enabled;
+    }
+
+    /**
+     * Adds the rule enabling profiling of the methods matching the given glob.
+     */
+    public static synchronized void enable(String glob) {
+        rules.add(new Rule(glob, true));
+        update();
+    }
+
+    /**
+     * Adds the rule disabling profiling of the methods matching the given glob.
+     */
+    public static synchronized void disable(String glob) {
+        rules.add(new Rule(glob, false));
+        update();
+    }
+
+    /**
+     * Removes all rules and turns profiling on.
+     */
+    public static synchronized void reset() {
+        rules.clear();
+        update();
+        enabled = true;
+    }
+
+    /**
+     * Replaces all settings by the settings of the given config file.
+     */
+    public static void load(String pathname) throws IOException, FileParseException {
+        List<Rule> loaded = new ArrayList<>();
+        boolean loadedEnabled = true;
+        List<String> lines = Files.readAllLines(new File(pathname).toPath(), StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s*=\\s*|\\s+", 2);
+            if (parts.length == 2 && parts[0].equals("profiling") && parts[1].matches("on|off")) {
+                loadedEnabled = parts[1].equals("on");
+            } else if (parts.length == 2 && parts[0].matches("enable|disable")) {
+                loaded.add(new Rule(parts[1], parts[0].equals("enable")));
+            } else {
+                throw new FileParseException("Malformed line " + (i + 1) + " of " + pathname + ": " + line);
+            }
+        }
+        synchronized (ProfilingControl.class) {
+            rules.clear();
+            rules.addAll(loaded);
+            update();
+            enabled = loadedEnabled;
+        }
+    }
+
+    /**
+     * Loads the given config file now and then checks it periodically in the background thread, the file is loaded
+     * again when its modification time changes. The errors of loading are kept by {@link #getLastError()} and the
+     * previous settings stay in effect. The file watched before is not watched anymore.
+     */
+    public static synchronized void watch(String pathname, long period, TimeUnit unit) {
+        stopWatching();
+        if (watcher == null) {
+            watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "profiling config watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        File file = new File(pathname);
+        watch = watcher.scheduleWithFixedDelay(new Runnable() {
+            private long lastModified = Long.MIN_VALUE;
+
+            @Override
+            public void run() {
+                long modified = file.lastModified();
+                if (modified != lastModified) {
+                    lastModified = modified;
+                    try {
+                        load(pathname);
+                        lastError = null;
+                    } catch (IOException | FileParseException e) {
+                        lastError = e;
+                    }
+                }
+            }
+        }, 0, period, unit);
+    }
+
+    public static synchronized void stopWatching() {
+        if (watch != null) {
+            watch.cancel(false);
+            watch = null;
+        }
+    }
+
+    // Returns the error of the last loading of the watched file, null if it was loaded successfully
+    public static Exception getLastError() {
+        return lastError;
+    }
+
+    // Creates the switch of the resolved method, the switch is updated whenever the rules change
+    static synchronized Switch register(String qualifiedName, String profilingName) {
+        Switch methodSwitch = new Switch(qualifiedName, profilingName);
+        methodSwitch.enabled = isProfiled(methodSwitch);
+        switches.add(methodSwitch);
+        return methodSwitch;
+    }
+
+    private static void update() {
+        for (Switch methodSwitch : switches) {
+            methodSwitch.enabled = isProfiled(methodSwitch);
+        }
+    }
+
+    private static boolean isProfiled(Switch methodSwitch) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            Rule rule = rules.get(i);
+            if (rule.pattern.matcher(methodSwitch.qualifiedName).matches()
+                    || rule.pattern.matcher(methodSwitch.profilingName).matches()) {
+                return rule.enable;
+            }
+        }
+        return true;
+    }
+
+    // Whether the resolved method is profiled according to the rules
+    static class Switch {
+        private final String qualifiedName, profilingName;
+        private volatile boolean enabled;
+
+        private Switch(String qualifiedName, String profilingName) {
+            this.qualifiedName = qualifiedName;
+            this.profilingName = profilingName;
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+    }
+
+    private static class Rule {
+        private final Pattern pattern;
+        private final boolean enable;
+
+        Rule(String glob, boolean enable) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : glob.split("((?<=[*?])|(?=[*?]))")) {
+                regex.append(part.equals("*") ? ".*" : part.equals("?") ? "." : Pattern.quote(part));
+            }
+            this.pattern = Pattern.compile(regex.toString());
+            this.enable = enable;
+        }
+    }
+}
@@ -29,4 +29,26 @@ public class MockApplication {
     void e(int i) {
     }
 
+    @Profiling(type = Profiling.NameType.OWN, ownName = "none", arguments = Profiling.ArgumentCapture.NONE)
+    void none(String s) {
+    }
+
+    @Profiling(type = Profiling.NameType.OWN, ownName = "types", arguments = Profiling.ArgumentCapture.TYPES)
+    void types(String s, int i) {
+    }
+
+    @Profiling(type = Profiling.NameType.OWN, ownName = "truncated",
+            arguments = Profiling.ArgumentCapture.TRUNCATED, maxArgumentsLength = 4)
+    void truncated(String s) {
+    }
+
+    @Profiling(type = Profiling.NameType.OWN, ownName = "lazy", arguments = Profiling.ArgumentCapture.LAZY)
+    void lazy(StringBuilder s) {
+    }
+
+    @Profiling(type = Profiling.NameType.OWN, ownName = "fail")
+    void fail() {
+        e(0);
+        throw new IllegalStateException();
+    }
 }
@@ -2,23 +2,67 @@ package org.jetbrains.test;
 
 import org.jetbrains.test.calltree.CallTree;
 import org.jetbrains.test.calltree.FileParseException;
+import org.jetbrains.test.calltree.LatencyHistogram;
+import org.jetbrains.test.calltree.OverheadCalibration;
+import org.jetbrains.test.calltree.RecordingLimits;
+import org.jetbrains.test.calltree.RollingDumpWriter;
+import org.jetbrains.test.calltree.Sampling;
+import org.jetbrains.test.calltree.SymbolTable;
+import org.jetbrains.test.calltree.TreeQuery;
 import org.jetbrains.test.calltree.aggregator.MethodCallAmount;
+import org.jetbrains.test.calltree.aggregator.MethodCallCorrectedTime;
 import org.jetbrains.test.calltree.aggregator.MethodCallTime;
+import org.jetbrains.test.calltree.aggregator.MethodLatency;
+import org.jetbrains.test.calltree.aggregator.Profile;
+import org.jetbrains.test.calltree.aggregator.ProfileAggregator;
+import org.jetbrains.test.calltree.aggregator.ProfileDiff;
+import org.jetbrains.test.calltree.aggregator.ProfileMerger;
+import org.jetbrains.test.calltree.export.ChromeTraceExporter;
+import org.jetbrains.test.calltree.export.CollapsedStackExporter;
+import org.jetbrains.test.profiller.OverheadCalibrator;
+import org.jetbrains.test.profiller.ProfilingAgent;
+import org.jetbrains.test.profiller.ProfilingControl;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class Tests {
     @Before
     public void preparation() {
         CallTree.clear();
+        ProfilingControl.stopWatching();
+        ProfilingControl.reset();
         Thread.currentThread().setName("Main thread");
     }
 
@@ -50,6 +94,1073 @@ public class Tests {
         assertEquals(real, read);
     }
 
+    @Test
+    public void testReadFromBinary() throws IOException, FileParseException {
+        new MockApplication().a();
+        CallTree real = CallTree.getInstance();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        real.writeTo(binary, CallTree.Format.BINARY);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        real.writeTo(text, CallTree.Format.TEXT);
+        assertTrue(binary.size() < text.size());
+
+        CallTree read = CallTree.readFromStream(new ByteArrayInputStream(binary.toByteArray()));
+        assertEquals(real, read);
+        assertEquals(MethodCallTime.execute(real), MethodCallTime.execute(read));
+    }
+
+    @Test
+    public void testReadMalformedNameLength() throws IOException {
+        // the name claims 1 GB, 2^40 bytes and the negative length, but the stream ends right after the length
+        byte[][] lengths = {{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04},
+                {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x20},
+                {-1, -1, -1, -1, -1, -1, -1, -1, -1, 0x01}};
+        for (byte[] length : lengths) {
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            // the version, no flags and the definition of the first name
+            binary.write(new byte[]{'C', 'T', 'R', 'E', 1, 0, 0});
+            binary.write(length);
+            try {
+                CallTree.readFromStream(new ByteArrayInputStream(binary.toByteArray()));
+                fail("The malformed name length should be rejected");
+            } catch (FileParseException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testHashesUpdatedAfterNewCalls() throws IOException, FileParseException {
+        new MockApplication().a();
+        CallTree tree = CallTree.getInstance();
+        String before = tree.toString();
+        tree.addMethodCall("x");
+        new MockApplication().c();
+        tree.finishMethodCall();
+        String after = tree.toString();
+
+        CallTree read = CallTree.readFromStream(new ByteArrayInputStream(after.getBytes()));
+        assertEquals(tree, read);
+        assertNotEquals(before.substring(0, before.indexOf('\n')), after.substring(0, after.indexOf('\n')));
+    }
+
+    @Test
+    public void testReadDeepTreeWithSpecialNames() throws IOException, FileParseException {
+        CallTree tree = new CallTree("deep", 1);
+        int depth = 5000;
+        for (int i = 0; i < depth; i++) {
+            tree.addMethodCall("f, 1]: (g, 4)", i, "]:");
+        }
+        for (int i = 0; i < depth; i++) {
+            tree.finishMethodCall();
+        }
+        CallTree read = CallTree.readFromStream(
+                new ByteArrayInputStream(tree.toString().getBytes(StandardCharsets.UTF_8))
+        );
+        assertEquals(tree.hashCode(), read.hashCode());
+        assertEquals(MethodCallAmount.execute(tree), MethodCallAmount.execute(read));
+        assertEquals(MethodCallTime.execute(tree), MethodCallTime.execute(read));
+    }
+
+    @Test
+    public void testMapFile() throws IOException, FileParseException {
+        new MockApplication().a();
+        CallTree real = CallTree.getInstance();
+        File file = File.createTempFile("mapped", ".tree");
+        file.deleteOnExit();
+        real.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+
+        CallTree mapped = CallTree.mapFile(file.getPath());
+        assertEquals(real.toString(), mapped.toString());
+        assertEquals(MethodCallAmount.execute(real), MethodCallAmount.execute(mapped));
+        assertEquals(MethodCallTime.execute(real), MethodCallTime.execute(mapped));
+        assertEquals(real, CallTree.readFromFile(file.getPath()));
+
+        // the plain binary file has no index, so it is read instead of mapping
+        File plain = File.createTempFile("plain", ".tree");
+        plain.deleteOnExit();
+        real.storeInFile(plain.getPath(), CallTree.Format.BINARY);
+        assertTrue(plain.length() * 2 < file.length());
+        try {
+            CallTree.mapFile(plain.getPath());
+            fail("The file without the index shouldn't be mapped");
+        } catch (FileParseException expected) {
+        }
+        assertEquals(real, CallTree.openFile(plain.getPath()));
+
+        // the corrupt trailer and index are rejected when the file is mapped
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer trailer = ByteBuffer.wrap(bytes);
+        long nodesIndex = trailer.getLong(bytes.length - 12);
+        List<byte[]> corrupt = new ArrayList<>();
+        corrupt.add(Arrays.copyOf(bytes, bytes.length - 1));
+        corrupt.add(bytes.clone());
+        corrupt.get(1)[4] = 2;
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putLong(bytes.length - 12, bytes.length).array());
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putLong(bytes.length - 20, nodesIndex).array());
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putInt((int) nodesIndex, Integer.MAX_VALUE).array());
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putLong((int) nodesIndex + 4, bytes.length).array());
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putInt((int) nodesIndex + 4 + 12, 5).array());
+        int names = (int) nodesIndex + 4 + trailer.getInt((int) nodesIndex) * 20;
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putInt(names, -1).array());
+        corrupt.add(ByteBuffer.wrap(bytes.clone()).putLong(names + 4, -1).array());
+        for (byte[] content : corrupt) {
+            Files.write(file.toPath(), content);
+            try {
+                CallTree.mapFile(file.getPath());
+                fail("The corrupt file shouldn't be mapped");
+            } catch (FileParseException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testCallingContextsMode() throws IOException, FileParseException {
+        CallTree.setDefaultRecordingMode(CallTree.RecordingMode.CALLING_CONTEXTS);
+        try {
+            CallTree.clear();
+            new MockApplication().a();
+        } finally {
+            CallTree.setDefaultRecordingMode(CallTree.RecordingMode.CALLS);
+        }
+        CallTree merged = CallTree.getInstance();
+        CallTree.clear();
+        new MockApplication().a();
+        CallTree full = CallTree.getInstance();
+
+        assertEquals(MethodCallAmount.execute(full), MethodCallAmount.execute(merged));
+        int nodes = 0;
+        for (CallTree.Node node : merged) {
+            nodes++;
+        }
+        assertEquals(13, nodes);
+
+        // the counters of merged calls are stored with the tree
+        List<CallTree> stored = new ArrayList<>();
+        for (CallTree.Format format : CallTree.Format.values()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            merged.writeTo(output, format);
+            stored.add(CallTree.readFromStream(new ByteArrayInputStream(output.toByteArray())));
+        }
+        File file = File.createTempFile("contexts", ".tree");
+        file.deleteOnExit();
+        merged.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+        stored.add(CallTree.mapFile(file.getPath()));
+        for (CallTree read : stored) {
+            assertEquals(merged.toString(), read.toString());
+            assertEquals(MethodCallAmount.execute(full), MethodCallAmount.execute(read));
+            assertEquals(MethodCallTime.execute(merged), MethodCallTime.execute(read));
+            Iterator<CallTree.Node> readNodes = read.iterator();
+            for (CallTree.Node node : merged) {
+                CallTree.Node readNode = readNodes.next();
+                assertEquals(node.getCallCount(), readNode.getCallCount());
+                assertEquals(node.getEstimatedExecutionTime(), readNode.getEstimatedExecutionTime());
+                assertEquals(node.getMinExecutionTime(), readNode.getMinExecutionTime());
+                assertEquals(node.getMaxExecutionTime(), readNode.getMaxExecutionTime());
+            }
+        }
+    }
+
+    @Test
+    public void testArenaStorage() throws IOException, FileParseException {
+        StringBuilder lazy = new StringBuilder("before");
+        CallTree.setDefaultStorage(CallTree.Storage.ARENA);
+        try {
+            CallTree.clear();
+            new MockApplication().lazy(lazy);
+            CallTree lazyTree = CallTree.getInstance();
+            assertEquals("lazy{before}", lazyTree.iterator().next().getChild(0).getName());
+            int hash = lazyTree.iterator().next().hashCode();
+            // the arguments are frozen in the arena, so the new views of the node keep the first name
+            lazy.append(" changed");
+            assertEquals("lazy{before}", lazyTree.iterator().next().getChild(0).getName());
+            assertEquals(hash, lazyTree.iterator().next().hashCode());
+
+            CallTree.clear();
+            new MockApplication().a();
+        } finally {
+            CallTree.setDefaultStorage(CallTree.Storage.NODES);
+        }
+        CallTree arena = CallTree.getInstance();
+        CallTree.clear();
+        new MockApplication().a();
+        CallTree nodes = CallTree.getInstance();
+
+        assertEquals(MethodCallAmount.execute(nodes), MethodCallAmount.execute(arena));
+        assertEquals(nodes.iterator().next().hashCode(), arena.iterator().next().hashCode());
+        CallTree read = CallTree.readFromStream(new ByteArrayInputStream(arena.toString().getBytes()));
+        assertEquals(arena.toString(), read.toString());
+        assertEquals(MethodCallTime.execute(arena), MethodCallTime.execute(read));
+    }
+
+    @Test
+    public void testSymbolTable() throws InterruptedException {
+        // the names registered by other threads are read without the lock while the table grows
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 5000; i++) {
+                        String shared = "symbol table shared " + i, own = "symbol table " + thread + " " + i;
+                        int id = SymbolTable.intern(shared);
+                        assertEquals(shared, SymbolTable.name(id));
+                        assertEquals(id, SymbolTable.find(shared));
+                        assertEquals(own, SymbolTable.name(SymbolTable.intern(own)));
+                        assertTrue(id < SymbolTable.size());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(-1, SymbolTable.find("symbol table unknown"));
+        try {
+            SymbolTable.name(SymbolTable.size());
+            fail();
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+    }
+
+    @Test
+    public void testArgumentCapture() {
+        MockApplication application = new MockApplication();
+        StringBuilder lazy = new StringBuilder("before");
+        application.none("argument");
+        application.types("argument", 1);
+        application.truncated("argument");
+        application.lazy(lazy);
+        lazy.append(" after");
+
+        List<CallTree.Node> calls = CallTree.getInstance().iterator().next().getChildren();
+        assertEquals("none{}", calls.get(0).getName());
+        assertEquals("types{String,int}", calls.get(1).getName());
+        assertEquals("truncated{argu...}", calls.get(2).getName());
+        assertEquals("lazy{before after}", calls.get(3).getName());
+        // the lazy arguments are converted once, so the name and its hash don't change after that
+        int hash = calls.get(3).hashCode();
+        lazy.append(" changed");
+        assertEquals("lazy{before after}", calls.get(3).getName());
+        assertEquals(hash, calls.get(3).hashCode());
+    }
+
+    @Test
+    public void testExceptionalCall() throws IOException, FileParseException {
+        try {
+            new MockApplication().fail();
+        } catch (IllegalStateException ignored) {
+        }
+        new MockApplication().e(1);
+        CallTree tree = CallTree.getInstance();
+        List<CallTree.Node> calls = tree.iterator().next().getChildren();
+        assertEquals(2, calls.size());
+        assertTrue(calls.get(0).isExceptional());
+        assertFalse(calls.get(0).getChildren().get(0).isExceptional());
+        assertFalse(calls.get(1).isExceptional());
+
+        CallTree fromText = CallTree.readFromStream(new ByteArrayInputStream(tree.toString().getBytes()));
+        assertTrue(fromText.iterator().next().getChildren().get(0).isExceptional());
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        tree.writeTo(binary, CallTree.Format.BINARY);
+        CallTree fromBinary = CallTree.readFromStream(new ByteArrayInputStream(binary.toByteArray()));
+        assertTrue(fromBinary.iterator().next().getChildren().get(0).isExceptional());
+        assertEquals(tree.toString(), fromBinary.toString());
+    }
+
+    @Test
+    public void testCompletedThreadTrees() throws InterruptedException {
+        CallTree current = CallTree.getInstance();
+        assertTrue(current == CallTree.getInstance());
+        Thread thread = new Thread(() -> new MockApplication().a());
+        thread.start();
+        thread.join();
+
+        assertEquals(2, CallTree.getTrees().size());
+        List<CallTree> completed = CallTree.drainCompletedTrees();
+        assertEquals(1, completed.size());
+        assertEquals(Integer.valueOf(40), MethodCallAmount.execute(completed.get(0)).get("e"));
+        assertEquals(1, CallTree.getTrees().size());
+        assertTrue(current == CallTree.getTrees().get(0));
+        assertTrue(CallTree.drainCompletedTrees().isEmpty());
+    }
+
+    @Test
+    public void testSampling() throws IOException, FileParseException {
+        CallTree.setDefaultSampling(Sampling.every(2));
+        try {
+            CallTree.clear();
+            for (int i = 0; i < 4; i++) {
+                new MockApplication().a();
+            }
+        } finally {
+            CallTree.setDefaultSampling(Sampling.ALL);
+        }
+        CallTree sampled = CallTree.getInstance();
+        CallTree.clear();
+        new MockApplication().a();
+        Map<String, Integer> expected = new HashMap<>();
+        MethodCallAmount.execute(CallTree.getInstance()).forEach((name, amount) -> expected.put(name, amount * 4));
+        expected.put(sampled.iterator().next().getName(), 1);
+
+        assertEquals(2, sampled.iterator().next().getChildren().size());
+        assertEquals(expected, MethodCallAmount.execute(sampled));
+        assertEquals(expected, MethodCallAmount.execute(CallTree.readFromStream(
+                new ByteArrayInputStream(sampled.toString().getBytes(StandardCharsets.UTF_8)))));
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        sampled.writeTo(binary, CallTree.Format.BINARY);
+        assertEquals(expected, MethodCallAmount.execute(CallTree.readFromStream(
+                new ByteArrayInputStream(binary.toByteArray()))));
+    }
+
+    @Test
+    public void testAdaptiveSampling() {
+        CallTree tree = new CallTree("root");
+        // every call takes a microsecond of the given clock, so 300 ms of calls pass without waiting for them
+        long[] now = {1};
+        tree.setSampling(Sampling.adaptive(1000, () -> now[0]));
+        int calls = 300_000;
+        for (int i = 0; i < calls; i++) {
+            tree.addMethodCall("f");
+            tree.addMethodCall("g");
+            tree.finishMethodCall();
+            tree.finishMethodCall();
+            now[0] += 1000;
+        }
+        int nodes = 0;
+        for (CallTree.Node node : tree) {
+            nodes++;
+        }
+        assertTrue(tree.getSamplingInterval() > 1);
+        assertTrue(nodes < calls);
+        // every recorded call represents itself and the skipped ones after it
+        int estimated = MethodCallAmount.execute(tree).get("f");
+        assertTrue(estimated >= calls && estimated < calls + tree.getSamplingInterval());
+    }
+
+    @Test
+    public void testOverheadCorrection() {
+        new MockApplication().a();
+        CallTree tree = CallTree.getInstance();
+        Map<String, Long> raw = MethodCallTime.execute(tree);
+        Map<String, Integer> amounts = MethodCallAmount.execute(tree);
+
+        Map<String, MethodCallCorrectedTime.Times> uncorrected = MethodCallCorrectedTime.execute(tree,
+                OverheadCalibration.NONE);
+        Map<String, MethodCallCorrectedTime.Times> corrected = MethodCallCorrectedTime.execute(tree,
+                new OverheadCalibration(10, 2));
+        for (String method : raw.keySet()) {
+            assertEquals(raw.get(method).longValue(), uncorrected.get(method).getInclusiveTime());
+            assertEquals(0, uncorrected.get(method).getCorrection());
+            assertEquals(raw.get(method) - corrected.get(method).getCorrection(),
+                    corrected.get(method).getInclusiveTime());
+            assertTrue(corrected.get(method).getSelfTime() <= corrected.get(method).getInclusiveTime());
+        }
+        Map<String, Long> correctedTimes = MethodCallTime.execute(tree, new OverheadCalibration(10, 2));
+        assertEquals(raw.keySet(), correctedTimes.keySet());
+        for (String method : raw.keySet()) {
+            assertEquals(corrected.get(method).getInclusiveTime(), correctedTimes.get(method).longValue());
+        }
+        // e is the leaf, so only the inner overhead is subtracted from its time
+        MethodCallCorrectedTime.Times leaf = corrected.get("e");
+        assertEquals(leaf.getInclusiveTime(), leaf.getSelfTime());
+        assertTrue(leaf.getCorrection() <= 2L * amounts.get("e"));
+
+        OverheadCalibration calibration = OverheadCalibrator.calibrate();
+        assertTrue(calibration.getInnerOverhead() <= calibration.getCallOverhead());
+        // the woven calls of calibration are recorded to the separate tree
+        assertTrue(tree == CallTree.getInstance());
+        assertEquals(1, CallTree.getTrees().size());
+        assertEquals(amounts, MethodCallAmount.execute(tree));
+    }
+
+    @Test
+    public void testProfileAggregator() throws InterruptedException {
+        new MockApplication().a();
+        Thread thread = new Thread(() -> new MockApplication().a());
+        thread.start();
+        thread.join();
+        List<CallTree> trees = CallTree.getTrees();
+        assertEquals(2, trees.size());
+
+        OverheadCalibration calibration = new OverheadCalibration(10, 2);
+        Map<String, Integer> amounts = new HashMap<>();
+        Map<String, Long> times = new HashMap<>();
+        Map<String, Long> correctedTimes = new HashMap<>();
+        Map<String, Long> correctedSelfTimes = new HashMap<>();
+        for (CallTree tree : trees) {
+            MethodCallAmount.execute(tree).forEach((method, amount) -> amounts.merge(method, amount, Integer::sum));
+            MethodCallTime.execute(tree).forEach((method, time) -> times.merge(method, time, Long::sum));
+            MethodCallCorrectedTime.execute(tree, calibration).forEach((method, time) -> {
+                correctedTimes.merge(method, time.getInclusiveTime(), Long::sum);
+                correctedSelfTimes.merge(method, time.getSelfTime(), Long::sum);
+            });
+        }
+        Profile profile = ProfileAggregator.execute(trees);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Profile corrected = ProfileAggregator.execute(trees, pool, calibration);
+        pool.shutdown();
+        assertEquals(amounts.keySet(), new HashSet<>(profile.getMethods()));
+        for (String method : amounts.keySet()) {
+            assertEquals(amounts.get(method).longValue(), profile.getCallCount(method));
+            assertEquals(times.get(method).longValue(), profile.getInclusiveTime(method));
+            assertTrue(profile.getSelfTime(method) <= profile.getInclusiveTime(method));
+            // the profile without calibration isn't corrected
+            assertEquals(profile.getInclusiveTime(method), profile.getCorrectedInclusiveTime(method));
+            assertEquals(profile.getSelfTime(method), profile.getCorrectedSelfTime(method));
+            assertEquals(correctedTimes.get(method).longValue(), corrected.getCorrectedInclusiveTime(method));
+            assertEquals(correctedSelfTimes.get(method).longValue(), corrected.getCorrectedSelfTime(method));
+            assertEquals(profile.getInclusiveTime(method), corrected.getInclusiveTime(method));
+        }
+        assertTrue(profile.getMinTime("e") <= profile.getMeanTime("e"));
+        assertTrue(profile.getMeanTime("e") <= profile.getMaxTime("e"));
+        assertEquals(profile.getInclusiveTime("e"), profile.getSelfTime("e"));
+        assertEquals(0, profile.getCallCount("unknown method"));
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(1000_000, histogram.getMax());
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long expected = (long) (percentile * 10_000);
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(value >= expected && value <= expected + expected / 32);
+        }
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(Long.MAX_VALUE, 1000);
+        other.merge(histogram);
+        assertEquals(2000, other.getCount());
+        long value = other.getValueAtPercentile(49.95);
+        assertTrue(value >= 999_000 && value <= 999_000 + 999_000 / 32);
+        assertEquals(Long.MAX_VALUE, other.getP99());
+        // the sum of values saturates instead of wrapping to negative
+        assertEquals(Long.MAX_VALUE / 2000, other.getMean());
+        other.merge(other.copy());
+        assertEquals(Long.MAX_VALUE / 4000, other.getMean());
+    }
+
+    @Test
+    public void testLatencyHistograms() throws InterruptedException {
+        CallTree.setDefaultLatencyHistograms(true);
+        try {
+            CallTree.clear();
+            new MockApplication().a();
+        } finally {
+            CallTree.setDefaultLatencyHistograms(false);
+        }
+        CallTree tree = CallTree.getInstance();
+        CallTree.setDefaultRecordingMode(CallTree.RecordingMode.HISTOGRAMS);
+        try {
+            Thread thread = new Thread(() -> new MockApplication().a());
+            thread.start();
+            thread.join();
+        } finally {
+            CallTree.setDefaultRecordingMode(CallTree.RecordingMode.CALLS);
+        }
+        Map<String, LatencyHistogram> histograms = tree.getLatencyHistograms();
+        Map<String, Integer> amounts = MethodCallAmount.execute(tree);
+        amounts.remove(tree.iterator().next().getName());
+        assertEquals(amounts.keySet(), histograms.keySet());
+        for (String method : amounts.keySet()) {
+            assertEquals(amounts.get(method).longValue(), histograms.get(method).getCount());
+        }
+        assertTrue(histograms.get("e").getP99() <= histograms.get("e").getMax());
+        assertTrue(histograms.get("d").getP50() >= histograms.get("e").getMin());
+
+        List<CallTree> trees = CallTree.getTrees();
+        assertEquals(2, trees.size());
+        int nodes = 0;
+        for (CallTree.Node node : trees.get(1)) {
+            nodes++;
+        }
+        assertEquals(1, nodes);
+        Map<String, LatencyHistogram> merged = MethodLatency.execute(trees);
+        assertEquals(80, merged.get("e").getCount());
+        assertEquals(2, merged.get("a").getCount());
+    }
+
+    @Test
+    public void testLiveSnapshots() throws Exception {
+        for (CallTree.Storage storage : CallTree.Storage.values()) {
+            CallTree.setDefaultStorage(storage);
+            Thread thread;
+            try {
+                CallTree.clear();
+                thread = new Thread(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        new MockApplication().a();
+                    }
+                });
+                thread.start();
+            } finally {
+                CallTree.setDefaultStorage(CallTree.Storage.NODES);
+            }
+            while (CallTree.getTrees().isEmpty()) {
+                Thread.yield();
+            }
+            CallTree live = CallTree.getTrees().get(0);
+            while (thread.isAlive()) {
+                CallTree snapshot = live.snapshot();
+                for (CallTree.Node node : snapshot) {
+                    // the call is finished only after all its nested calls
+                    if (node.getEndCallTime() != -1) {
+                        for (CallTree.Node child : node.getChildren()) {
+                            assertTrue(child.getEndCallTime() != -1);
+                        }
+                    }
+                }
+                assertEquals(snapshot, CallTree.readFromStream(
+                        new ByteArrayInputStream(snapshot.toString().getBytes(StandardCharsets.UTF_8))));
+            }
+            thread.join();
+            CallTree snapshot = CallTree.snapshotTrees().get(0);
+            assertEquals(live.toString(), snapshot.toString());
+            assertEquals(Integer.valueOf(8000), MethodCallAmount.execute(snapshot).get("e"));
+        }
+    }
+
+    @Test
+    public void testRollingDumpWriter() throws Exception {
+        new MockApplication().a();
+        File directory = Files.createTempDirectory("dumps").toFile();
+        RollingDumpWriter writer = new RollingDumpWriter(directory.getPath(), "calls");
+        writer.setCompression(RollingDumpWriter.Compression.GZIP);
+        writer.dumpNow().get();
+        // only the calls finished since the previous dump are written, the unfinished call is the path to them
+        CallTree tree = CallTree.getInstance();
+        tree.addMethodCall("open");
+        new MockApplication().c();
+        writer.dumpNow().get();
+        tree.finishMethodCall();
+        writer.close();
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".tree.gz"));
+        List<CallTree> dumps;
+        try (InputStream input = new GZIPInputStream(new FileInputStream(files[0]))) {
+            dumps = CallTree.readAllFromStream(input);
+        }
+        assertEquals(3, dumps.size());
+        assertEquals(Integer.valueOf(40), MethodCallAmount.execute(dumps.get(0)).get("e"));
+        Map<String, Integer> second = MethodCallAmount.execute(dumps.get(1));
+        assertEquals(Integer.valueOf(10), second.get("e"));
+        assertFalse(second.containsKey("a"));
+        assertEquals(-1, dumps.get(1).iterator().next().getChild(0).getEndCallTime());
+        assertEquals(2, MethodCallAmount.execute(dumps.get(2)).size());
+        assertEquals(finishedCalls(Collections.singletonList(tree)), finishedCalls(dumps));
+
+        // every dump exceeds the size, so it is written to the new file, the last dump has no calls
+        for (CallTree.Storage storage : CallTree.Storage.values()) {
+            CallTree.clear();
+            CallTree.setDefaultStorage(storage);
+            File rolled = Files.createTempDirectory("dumps").toFile();
+            try {
+                new MockApplication().a();
+                writer = new RollingDumpWriter(rolled.getPath(), "calls");
+                writer.setFormat(CallTree.Format.BINARY);
+                writer.setMaxFileSize(1);
+                writer.dumpNow().get();
+                new MockApplication().c();
+                writer.dumpNow().get();
+                writer.close();
+            } finally {
+                CallTree.setDefaultStorage(CallTree.Storage.NODES);
+            }
+            assertEquals(2, rolled.listFiles().length);
+            dumps = new ArrayList<>();
+            for (File file : rolled.listFiles()) {
+                dumps.add(CallTree.readFromFile(file.getPath()));
+                file.deleteOnExit();
+            }
+            assertEquals(finishedCalls(CallTree.getTrees()), finishedCalls(dumps));
+            rolled.deleteOnExit();
+        }
+
+        // the unexpected exception of the periodic dump is kept and the next dumps are still scheduled, every failed
+        // dump leaves its own file
+        File failing = Files.createTempDirectory("dumps").toFile();
+        writer = new RollingDumpWriter(failing.getPath(), "calls");
+        writer.setFormat(null);
+        writer.setPeriod(1, TimeUnit.MILLISECONDS);
+        writer.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (failing.listFiles().length < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(failing.listFiles().length >= 2);
+        assertTrue(writer.getLastError().getCause() instanceof NullPointerException);
+        try {
+            writer.close();
+            fail();
+        } catch (IOException ignored) {
+        }
+        // closing again doesn't submit to the stopped writer thread
+        writer.close();
+        for (File file : failing.listFiles()) {
+            file.deleteOnExit();
+        }
+        failing.deleteOnExit();
+        files[0].deleteOnExit();
+        directory.deleteOnExit();
+    }
+
+    // Returns the amounts of finished calls of methods in all trees
+    private static Map<String, Integer> finishedCalls(List<CallTree> trees) {
+        Map<String, Integer> amounts = new HashMap<>();
+        for (CallTree tree : trees) {
+            for (CallTree.Node node : tree) {
+                if (node.getEndCallTime() != -1) {
+                    amounts.merge(node.getName(), 1, Integer::sum);
+                }
+            }
+        }
+        return amounts;
+    }
+
+    @Test
+    public void testExporters() throws IOException, FileParseException {
+        new MockApplication().a();
+        new MockApplication().a();
+        CallTree tree = CallTree.getInstance();
+        StringWriter collapsed = new StringWriter();
+        CollapsedStackExporter.export(Collections.singletonList(tree), collapsed);
+        String root = tree.iterator().next().getName();
+        Set<String> stacks = new HashSet<>();
+        long total = 0;
+        for (String line : collapsed.toString().split("\n")) {
+            int space = line.lastIndexOf(' ');
+            String stack = line.substring(0, space);
+            assertTrue(stack.startsWith(root + ";a"));
+            assertTrue(stacks.add(stack));
+            total += Long.parseLong(line.substring(space + 1));
+        }
+        // the identical stacks of both calls are merged
+        assertTrue(stacks.size() <= 13);
+        assertEquals(MethodCallTime.execute(tree).get("a").longValue(), total);
+
+        File file = File.createTempFile("exported", ".tree");
+        file.deleteOnExit();
+        tree.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+        StringWriter mapped = new StringWriter();
+        CollapsedStackExporter.export(Collections.singletonList(CallTree.openFile(file.getPath())), mapped);
+        assertEquals(collapsed.toString(), mapped.toString());
+
+        // the self times of stacks without the recording overhead add up to the corrected self times of methods
+        OverheadCalibration calibration = new OverheadCalibration(10, 2);
+        StringWriter corrected = new StringWriter();
+        CollapsedStackExporter.export(Collections.singletonList(tree), corrected, calibration);
+        long correctedTotal = 0;
+        for (String line : corrected.toString().split("\n")) {
+            correctedTotal += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        long correctedSelfTime = 0;
+        for (MethodCallCorrectedTime.Times times : MethodCallCorrectedTime.execute(tree, calibration).values()) {
+            correctedSelfTime += times.getSelfTime();
+        }
+        assertEquals(correctedSelfTime, correctedTotal);
+
+        StringWriter trace = new StringWriter();
+        ChromeTraceExporter.export(Collections.singletonList(tree), trace);
+        String json = trace.toString();
+        assertTrue(json.startsWith("{\"traceEvents\":[") && json.endsWith("]}\n"));
+        assertEquals(1, json.split("\"ph\":\"M\"", -1).length - 1);
+        assertEquals(2 * 48, json.split("\"ph\":\"X\"", -1).length - 1);
+        assertTrue(json.contains("\"args\":{\"name\":\"" + root + "\"}"));
+    }
+
+    @Test
+    public void testProfileDiff() {
+        new MockApplication().a();
+        CallTree before = CallTree.getInstance().snapshot();
+        assertTrue(ProfileDiff.execute(before, before).isEmpty());
+
+        new MockApplication().c();
+        CallTree after = CallTree.getInstance();
+        Map<String, ProfileDiff.PathDelta> deltas = new HashMap<>();
+        List<ProfileDiff.PathDelta> ranked = ProfileDiff.execute(before, after);
+        for (ProfileDiff.PathDelta delta : ranked) {
+            deltas.put(String.join(";", delta.getPath()), delta);
+        }
+        assertEquals(1, deltas.get("c").getCallCountAfter());
+        assertEquals(0, deltas.get("c").getCallCountBefore());
+        assertEquals(10, deltas.get("c;d;e").getCallCountDelta());
+        CallTree.Node c = after.iterator().next().getChild(1);
+        assertEquals(c.getEndCallTime() - c.getStartCallTime(), deltas.get("c").getInclusiveTimeDelta());
+        assertFalse(deltas.containsKey("a;b;c"));
+        for (int i = 1; i < ranked.size(); i++) {
+            assertTrue(Math.abs(ranked.get(i - 1).getSelfTimeDelta()) >= Math.abs(ranked.get(i).getSelfTimeDelta()));
+        }
+    }
+
+    @Test
+    public void testRecordingLimits() throws Exception {
+        CallTree tree = CallTree.getInstance();
+        tree.setLimits(RecordingLimits.of(10, 100, RecordingLimits.OverflowPolicy.DROP));
+        new MockApplication().a();
+        assertEquals(11, countNodes(tree));
+        assertEquals(38, tree.getDroppedNodes());
+        assertEquals(tree, CallTree.readFromStream(new ByteArrayInputStream(tree.toString().getBytes())));
+
+        CallTree.clear();
+        tree = CallTree.getInstance();
+        tree.setLimits(RecordingLimits.of(1000, 2, RecordingLimits.OverflowPolicy.DROP));
+        new MockApplication().a();
+        assertEquals(5, countNodes(tree));
+        assertEquals(44, tree.getDroppedNodes());
+
+        // only the last two calls of a fit into the limit
+        CallTree.clear();
+        tree = CallTree.getInstance();
+        tree.setLimits(RecordingLimits.of(100, 100, RecordingLimits.OverflowPolicy.EVICT_OLDEST));
+        for (int i = 0; i < 5; i++) {
+            new MockApplication().a();
+        }
+        assertEquals(97, countNodes(tree));
+        assertEquals(3 * 48, tree.getDroppedNodes());
+        assertEquals(2, tree.iterator().next().getChildCount());
+        assertEquals(Integer.valueOf(80), MethodCallAmount.execute(tree).get("e"));
+        assertEquals(tree, CallTree.readFromStream(new ByteArrayInputStream(tree.toString().getBytes())));
+        assertEquals(tree.toString(), tree.snapshot().toString());
+
+        // the calls are evicted from the unfinished root-level call
+        CallTree.clear();
+        tree = CallTree.getInstance();
+        tree.setLimits(RecordingLimits.of(101, 100, RecordingLimits.OverflowPolicy.EVICT_OLDEST));
+        tree.addMethodCall("loop");
+        for (int i = 0; i < 5; i++) {
+            new MockApplication().a();
+        }
+        assertEquals(98, countNodes(tree.snapshot()));
+        tree.finishMethodCall();
+        assertEquals(98, countNodes(tree));
+        assertEquals(3 * 48, tree.getDroppedNodes());
+        assertEquals(2, tree.iterator().next().getChild(0).getChildCount());
+
+        CallTree.clear();
+        tree = CallTree.getInstance();
+        tree.setLimits(RecordingLimits.of(10, 100, RecordingLimits.OverflowPolicy.COLLAPSE));
+        new MockApplication().a();
+        assertEquals(11, countNodes(tree));
+        assertEquals(38, tree.getDroppedNodes());
+        Map<String, Long> collapsed = tree.getCollapsedCalls();
+        assertEquals(Long.valueOf(34), collapsed.get("e"));
+        assertEquals(Long.valueOf(3), collapsed.get("d"));
+        assertEquals(Long.valueOf(1), collapsed.get("c"));
+        assertFalse(collapsed.containsKey("b"));
+        assertTrue(tree.getCollapsedTimes().get("d") > 0);
+        assertEquals(collapsed, tree.snapshot().getCollapsedCalls());
+
+        // the counters are stored with the tree
+        for (CallTree.Format format : CallTree.Format.values()) {
+            ByteArrayOutputStream stored = new ByteArrayOutputStream();
+            tree.writeTo(stored, format);
+            CallTree read = CallTree.readFromStream(new ByteArrayInputStream(stored.toByteArray()));
+            assertEquals(tree, read);
+            assertEquals(38, read.getDroppedNodes());
+            assertEquals(collapsed, read.getCollapsedCalls());
+            assertEquals(tree.getCollapsedTimes(), read.getCollapsedTimes());
+        }
+        File file = File.createTempFile("limits", ".tree");
+        file.deleteOnExit();
+        tree.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+        CallTree mapped = CallTree.mapFile(file.getPath());
+        assertEquals(38, mapped.getDroppedNodes());
+        assertEquals(tree.getCollapsedTimes(), mapped.getCollapsedTimes());
+
+        // every dump has the counters changed since the previous one, the tree is full, so the last dump has no calls
+        File directory = Files.createTempDirectory("dumps").toFile();
+        RollingDumpWriter writer = new RollingDumpWriter(directory.getPath(), "limits");
+        writer.dumpNow().get();
+        new MockApplication().a();
+        writer.dumpNow().get();
+        writer.close();
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        List<CallTree> dumps = CallTree.readAllFromStream(new FileInputStream(files[0]));
+        assertEquals(2, dumps.size());
+        assertEquals(1, countNodes(dumps.get(1)));
+        assertEquals(38, dumps.get(0).getDroppedNodes());
+        assertEquals(38 + 48, tree.getDroppedNodes());
+        assertEquals(tree.getDroppedNodes(), dumps.get(0).getDroppedNodes() + dumps.get(1).getDroppedNodes());
+        Map<String, Long> collapsedTimes = new HashMap<>();
+        for (CallTree dump : dumps) {
+            dump.getCollapsedTimes().forEach((method, time) -> collapsedTimes.merge(method, time, Long::sum));
+        }
+        assertEquals(tree.getCollapsedTimes(), collapsedTimes);
+        files[0].deleteOnExit();
+        directory.deleteOnExit();
+    }
+
+    private static int countNodes(CallTree tree) {
+        int nodes = 0;
+        for (CallTree.Node ignored : tree) {
+            nodes++;
+        }
+        return nodes;
+    }
+
+    @Test
+    public void testEventLogStorage() throws InterruptedException {
+        Map<CallTree.Storage, CallTree> trees = new HashMap<>();
+        for (CallTree.Storage storage : new CallTree.Storage[]{CallTree.Storage.NODES, CallTree.Storage.EVENTS}) {
+            CallTree.setDefaultStorage(storage);
+            Thread thread;
+            try {
+                CallTree.clear();
+                // the calls don't fit into the buffer, so the recording thread waits for the consumer
+                thread = new Thread(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        new MockApplication().a();
+                        try {
+                            new MockApplication().fail();
+                        } catch (IllegalStateException ignored) {
+                        }
+                    }
+                });
+                thread.start();
+            } finally {
+                CallTree.setDefaultStorage(CallTree.Storage.NODES);
+            }
+            while (thread.isAlive()) {
+                for (CallTree tree : CallTree.snapshotTrees()) {
+                    assertEquals(tree.toString(), tree.snapshot().toString());
+                }
+            }
+            thread.join();
+            trees.put(storage, CallTree.getTrees().get(0));
+        }
+        CallTree nodes = trees.get(CallTree.Storage.NODES), events = trees.get(CallTree.Storage.EVENTS);
+        assertEquals(nodes.iterator().next().getChildren(), events.iterator().next().getChildren());
+        assertEquals(Integer.valueOf(8000 + 200), MethodCallAmount.execute(events).get("e"));
+        assertTrue(events.iterator().next().getChild(1).isExceptional());
+
+        // the consumer stops after the trees of terminated threads are consumed
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (isEventConsumerAlive() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertFalse(isEventConsumerAlive());
+    }
+
+    private static boolean isEventConsumerAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("call tree event consumer") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testEventLogStorageCleared() throws InterruptedException {
+        WeakReference<CallTree> cleared;
+        CallTree.setDefaultStorage(CallTree.Storage.EVENTS);
+        try {
+            new MockApplication().a();
+            cleared = new WeakReference<>(CallTree.getInstance());
+            CallTree.clear();
+            // the thread is still running, so only clear() forgets its tree
+            new MockApplication().a();
+        } finally {
+            CallTree.setDefaultStorage(CallTree.Storage.NODES);
+        }
+        for (int i = 0; i < 100 && cleared.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(cleared.get());
+        assertEquals(Integer.valueOf(40), MethodCallAmount.execute(CallTree.getInstance()).get("e"));
+    }
+
+    @Test
+    public void testTreeQuery() throws IOException, FileParseException {
+        // the calls of e take two blocks of the index
+        new MockApplication().a();
+        new MockApplication().a();
+        CallTree real = CallTree.getInstance();
+        File file = File.createTempFile("query", ".tree");
+        file.deleteOnExit();
+        real.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+        CallTree mapped = CallTree.openFile(file.getPath());
+
+        List<TreeQuery.Match> calls = new TreeQuery().method("e").execute(mapped);
+        assertEquals(80, calls.size());
+        for (int i = 1; i < calls.size(); i++) {
+            assertTrue(calls.get(i - 1).getDuration() >= calls.get(i).getDuration());
+        }
+        TreeQuery.Match longest = calls.get(0);
+        assertEquals("e", longest.getNode().getFunctionName());
+        assertEquals(longest.getDuration(), longest.getNode().getEndCallTime() - longest.getNode().getStartCallTime());
+        assertEquals(real.iterator().next().getName(), longest.getPath().get(0).getName());
+        assertEquals("d", longest.getPath().get(longest.getDepth() - 1).getFunctionName());
+        assertEquals(calls.subList(0, 5).toString(), new TreeQuery().method("e").limit(5).execute(mapped).toString());
+        assertTrue(new TreeQuery().method("f").execute(mapped).isEmpty());
+
+        CallTree.Node a = real.iterator().next().getChild(0);
+        long median = calls.get(40).getDuration();
+        TreeQuery[] queries = {new TreeQuery().duration(0, median).depth(2, 4)
+                .startedBetween(a.getStartCallTime(), a.getChild(1).getStartCallTime()),
+                new TreeQuery().method("e").duration(calls.get(60).getDuration(), calls.get(5).getDuration())};
+        for (TreeQuery query : queries) {
+            List<String> indexed = new ArrayList<>(), walked = new ArrayList<>();
+            query.execute(mapped).forEach(match -> indexed.add(match + " " + match.getStartCallTime()));
+            query.execute(real).forEach(match -> walked.add(match + " " + match.getStartCallTime()));
+            Collections.sort(indexed);
+            Collections.sort(walked);
+            assertFalse(indexed.isEmpty());
+            assertEquals(walked, indexed);
+        }
+
+        // the index of methods is stored in the tree file and skipped when the file is read as a stream
+        assertFalse(new File(file.getPath() + ".idx").exists());
+        assertEquals(real, CallTree.readFromFile(file.getPath()));
+        new MockApplication().c();
+        real.storeInFile(file.getPath(), CallTree.Format.BINARY_INDEXED);
+        assertEquals(90, new TreeQuery().method("e").execute(CallTree.mapFile(file.getPath())).size());
+    }
+
+    @Test
+    public void testProfileMerger() throws Exception {
+        File directory = Files.createTempDirectory("merge").toFile();
+        directory.deleteOnExit();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Thread thread = new Thread(() -> new MockApplication().a());
+            thread.start();
+            thread.join();
+        }
+        for (CallTree tree : CallTree.getTrees()) {
+            File file = new File(directory, files.size() + ".tree");
+            file.deleteOnExit();
+            tree.storeInFile(file.getPath(), files.size() % 2 == 0 ? CallTree.Format.BINARY : CallTree.Format.TEXT);
+            files.add(file);
+        }
+
+        StringWriter inMemory = new StringWriter(), spilled = new StringWriter();
+        long paths = new ProfileMerger(1 << 30, 1, directory).merge(files, inMemory);
+        assertEquals(paths, new ProfileMerger(1, 4, directory).merge(files, spilled));
+        assertEquals(inMemory.toString(), spilled.toString());
+        List<String> lines = Arrays.asList(inMemory.toString().split("\n"));
+        assertEquals(paths, lines.size());
+        List<String> sorted = new ArrayList<>(lines);
+        Collections.sort(sorted);
+        assertEquals(sorted, lines);
+        long calls = CallTree.getTrees().stream().filter(tree -> tree.iterator().next().getChildCount() != 0).count();
+        for (String line : lines) {
+            if (line.startsWith("a;b;c;d;e ")) {
+                assertEquals(10 * calls, Long.parseLong(line.split(" ")[1]));
+            }
+        }
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("a;b;c;d;e ")));
+        assertEquals(files.size(), directory.list().length);
+    }
+
+    @Test
+    public void testProfilingControl() throws Exception {
+        ProfilingControl.setEnabled(false);
+        new MockApplication().a();
+        assertEquals(0, CallTree.getInstance().iterator().next().getChildCount());
+
+        ProfilingControl.setEnabled(true);
+        ProfilingControl.disable("d");
+        new MockApplication().a();
+        Map<String, Integer> amounts = MethodCallAmount.execute(CallTree.getInstance());
+        assertFalse(amounts.containsKey("d"));
+        assertEquals(40, (int) amounts.get("e"));
+        assertEquals(2, (int) amounts.get("c"));
+
+        CallTree.clear();
+        ProfilingControl.disable("org.jetbrains.test.Mock*.?");
+        ProfilingControl.enable("org.jetbrains.test.MockApplication.b");
+        new MockApplication().a();
+        amounts = MethodCallAmount.execute(CallTree.getInstance());
+        assertEquals(1, (int) amounts.get("b"));
+        for (String name : new String[]{"a", "c", "d", "e"}) {
+            assertFalse(amounts.containsKey(name));
+        }
+
+        File config = File.createTempFile("profiling", ".conf");
+        config.deleteOnExit();
+        writeConfig(config, "# incident\nprofiling = on\ndisable *\nenable e\n");
+        ProfilingControl.watch(config.getPath(), 10, TimeUnit.MILLISECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        do {
+            CallTree.clear();
+            new MockApplication().a();
+            amounts = MethodCallAmount.execute(CallTree.getInstance());
+        } while (!amounts.containsKey("e") && System.nanoTime() < deadline);
+        // the config could be loaded in the middle of the call
+        CallTree.clear();
+        new MockApplication().a();
+        amounts = MethodCallAmount.execute(CallTree.getInstance());
+        assertEquals(40, (int) amounts.get("e"));
+        assertFalse(amounts.containsKey("b"));
+
+        writeConfig(config, "profiling = off\n");
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ProfilingControl.isEnabled() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(ProfilingControl.isEnabled());
+
+        writeConfig(config, "profile everything\n");
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ProfilingControl.getLastError() == null && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(ProfilingControl.getLastError() instanceof FileParseException);
+        assertFalse(ProfilingControl.isEnabled());
+    }
+
+    // Replaces the watched config at once, otherwise the watcher could load the truncated file. The modification time
+    // is moved forward, so the change is seen even within the resolution of the file system.
+    private static void writeConfig(File config, String text) throws IOException {
+        long lastModified = config.lastModified();
+        File written = File.createTempFile("profiling", ".conf", config.getParentFile());
+        Files.write(written.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        written.setLastModified(lastModified + 2000);
+        Files.move(written.toPath(), config.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Test
+    public void testProfilingAgentOptions() {
+        String xml = ProfilingAgent.toAopXml("include=com.example..*; exclude=com.example.gen..*;"
+                + "method=* *.handle*(..);method=* *.process(String, int)");
+        assertTrue(xml.contains("extends=\"org.jetbrains.test.profiller.PatternProfilingAspect\""));
+        assertTrue(xml.contains("expression=\"execution(* *.handle*(..)) || execution(* *.process(String, int))\""));
+        assertTrue(xml.contains("<include within=\"com.example..*\"/>"));
+        assertTrue(xml.contains("<exclude within=\"com.example.gen..*\"/>"));
+        assertTrue(xml.contains("<exclude within=\"org.jetbrains.test.calltree..*\"/>"));
+        assertTrue(ProfilingAgent.toAopXml(null).contains("expression=\"execution(* *(..))\""));
+        assertEquals(ProfilingAgent.toAopXml(null), ProfilingAgent.toAopXml("output=dumps;period=10"));
+        assertTrue(ProfilingAgent.toAopXml("method=!static * *(..)")
+                .contains("expression=\"execution(!static * *(..))\""));
+        String pointcut = "method=* *.run();pointcut=execution(* *(..)) && !execution(* *.toString())";
+        assertTrue(ProfilingAgent.toAopXml(pointcut).contains("expression=\"execution(* *.run()) || "
+                + "(execution(* *(..)) &amp;&amp; !execution(* *.toString()))\""));
+        for (String malformed : new String[]{"include", "unknown=1", "method=", "method=execution(* *(..))",
+                "method=* *(..) && !execution(* *.a())", "method=!within(com.example..*)", "method=* a() || * b()",
+                "period=10", "output=dumps;period=0", "output=dumps;period=1m"}) {
+            try {
+                ProfilingAgent.toAopXml(malformed);
+                fail("Options should be rejected: " + malformed);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
     @Test
     public void testTimeAmount() {
         new MockApplication().a();